@@ -0,0 +1,126 @@
+package org.maintainteam.hypatiadatabases;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * put and mightContain on filters of the sizes App ships, filled to capacity before lookups are measured,
+ * for Guava's BloomFilter and for ConcurrentBloomFilter, which hash the same bytes and set the same bits,
+ * and for the cache-line blocked filter, looked up through the BlockedBloomFilterReader clients use.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class BloomFilterBenchmark {
+    private static final int KEYS = 1 << 16;
+    private static final double FPP = 0.00001;
+
+    //name:expected insertions:key length, as in App
+    @Param({"md5:7600000:32", "sha1:100000:40", "sha256:2200000:64", "domains:4500000:0"})
+    public String target;
+
+    @Param({"guava", "concurrent", "blocked"})
+    public String implementation;
+
+    private BloomFilter<byte[]> guava;
+    private ConcurrentBloomFilter concurrent;
+    private BlockedBloomFilter blocked;
+    private BlockedBloomFilterReader blockedReader;
+    private byte[][] present;
+    private byte[][] absent;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        String[] fields = target.split(":");
+        int expected = Integer.parseInt(fields[1]);
+        int keyLength = Integer.parseInt(fields[2]);
+        SyntheticCorpus corpus = new SyntheticCorpus(target.hashCode());
+
+        if (implementation.equals("guava")) {
+            guava = BloomFilter.create(Funnels.byteArrayFunnel(), expected, FPP);
+        } else if (implementation.equals("concurrent")) {
+            concurrent = ConcurrentBloomFilter.create(expected, FPP);
+        } else {
+            blocked = BlockedBloomFilter.create(expected, FPP);
+        }
+        //fill in batches so the full key set never has to be held at once
+        for (int filled = 0; filled < expected; filled += KEYS) {
+            for (byte[] key : keys(corpus, Math.min(KEYS, expected - filled), keyLength)) {
+                put(key);
+            }
+        }
+        present = keys(corpus, KEYS, keyLength);
+        for (byte[] key : present) {
+            put(key);
+        }
+        absent = keys(corpus, KEYS, keyLength);
+        if (blocked != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) blocked.serializedSize());
+            blocked.writeTo(out);
+            blockedReader = BlockedBloomFilterReader.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        }
+    }
+
+    private static byte[][] keys(SyntheticCorpus corpus, int count, int keyLength) {
+        if (keyLength > 0) {
+            return corpus.keys(count, keyLength);
+        }
+        String[] lines = new String(corpus.domains(count), StandardCharsets.US_ASCII).split("\n");
+        byte[][] keys = new byte[lines.length][];
+        for (int i = 0; i < lines.length; i++) {
+            keys[i] = lines[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return keys;
+    }
+
+    private boolean put(byte[] key) {
+        if (blocked != null) {
+            blocked.put(key);
+            return true;
+        }
+        return guava != null ? guava.put(key) : concurrent.put(key);
+    }
+
+    private boolean mightContain(byte[] key) {
+        if (blockedReader != null) {
+            return blockedReader.mightContain(key);
+        }
+        return guava != null ? guava.mightContain(key) : concurrent.mightContain(key);
+    }
+
+    @Benchmark
+    public boolean put() {
+        return put(absent[next++ & (KEYS - 1)]);
+    }
+
+    @Benchmark
+    public boolean mightContainPresent() {
+        return mightContain(present[next++ & (KEYS - 1)]);
+    }
+
+    @Benchmark
+    public boolean mightContainAbsent() {
+        return mightContain(absent[next++ & (KEYS - 1)]);
+    }
+}
@@ -0,0 +1,97 @@
+package org.maintainteam.hypatiadatabases;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.IterationParams;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time and retained heap per entry to dedupe hashes in a HashSet of Strings, as AppResize used to,
+ * and in a PackedHashSet. The heap figure is reported as the bytesPerEntry secondary result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class DedupeMemoryBenchmark {
+    @Param({"1000000"})
+    public int entries;
+
+    @Param({"32", "40", "64"})
+    public int hexLength;
+
+    private byte[] hex;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public double bytesPerEntry;
+
+        //JMH sums event counters over the iterations, so each one contributes its share of the mean
+        private double share;
+
+        @Setup(Level.Iteration)
+        public void reset(IterationParams iteration) {
+            bytesPerEntry = 0;
+            share = 1.0 / iteration.getCount();
+        }
+
+        private void record(long bytes, int entries) {
+            bytesPerEntry = bytes * share / entries;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        hex = new SyntheticCorpus(hexLength).hex(entries, hexLength);
+    }
+
+    @Benchmark
+    public Object hashSet(Footprint footprint) {
+        long before = usedHeap();
+        Set<String> set = new HashSet<>();
+        for (int i = 0; i < entries; i++) {
+            set.add(new String(hex, i * hexLength, hexLength, StandardCharsets.US_ASCII));
+        }
+        footprint.record(usedHeap() - before, entries);
+        return set;
+    }
+
+    @Benchmark
+    public Object packedHashSet(Footprint footprint) {
+        long before = usedHeap();
+        PackedHashSet set = new PackedHashSet(hexLength / 2);
+        byte[] key = new byte[hexLength];
+        for (int i = 0; i < entries; i++) {
+            System.arraycopy(hex, i * hexLength, key, 0, hexLength);
+            set.add(key);
+        }
+        footprint.record(usedHeap() - before, entries);
+        return set;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,90 @@
+package org.maintainteam.hypatiadatabases;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lines per second through HashLineParser for each input format, alone and with the per-hash work App does
+ * for every valid line: the exclusion lookup and the Murmur3 hash its filters are fed with.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+    private static final int LINES = 200_000;
+
+    @Param({"CLAMAV", "PLAIN", "LOKI", "BEST_EFFORT"})
+    public HashLineParser.Format format;
+
+    private ByteBuffer database;
+    private Exclusions exclusions;
+
+    @Setup
+    public void setup() {
+        SyntheticCorpus corpus = new SyntheticCorpus(1);
+        byte[] content = corpus.database(format, LINES);
+        //direct, like the mapped chunks DatabaseReader parses
+        database = ByteBuffer.allocateDirect(content.length);
+        database.put(content).flip();
+        DigestSets excluded = new DigestSets();
+        for (byte[] hex : corpus.keys(1000, 32)) {
+            excluded.add(hex);
+        }
+        exclusions = new Exclusions(excluded);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parse(Blackhole blackhole) {
+        HashLineParser.Sink sink = new HashLineParser.Sink() {
+            @Override
+            public void hash(byte[] hex) {
+                blackhole.consume(hex);
+            }
+
+            @Override
+            public void rejected(HashLineParser.Rejection reason, ByteBuffer line, int start, int end) {
+                blackhole.consume(reason);
+            }
+        };
+        new HashLineParser(format, sink).parse(database.duplicate(), true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parseCheckAndHash(Blackhole blackhole) {
+        long[] murmur = new long[2];
+        HashLineParser.Sink sink = new HashLineParser.Sink() {
+            @Override
+            public void hash(byte[] hex) {
+                if (!exclusions.contains(hex)) {
+                    Murmur3.hash128(hex, murmur);
+                    blackhole.consume(murmur[0] ^ murmur[1]);
+                }
+            }
+
+            @Override
+            public void rejected(HashLineParser.Rejection reason, ByteBuffer line, int start, int end) {
+                blackhole.consume(reason);
+            }
+        };
+        new HashLineParser(format, sink).parse(database.duplicate(), true);
+    }
+}
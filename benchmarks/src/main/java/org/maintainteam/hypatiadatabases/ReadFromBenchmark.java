@@ -0,0 +1,105 @@
+package org.maintainteam.hypatiadatabases;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to deserialize a hypatia-*-bloom.bin file, which is what a client pays on every start.
+ * Pass -p production=/path/to/production to read the real files; otherwise a filter of the size App ships is generated.
+ * The file is held in memory so only deserialization is measured, not the disk.
+ * mapped opens the same filter in MappedBloomFilter's layout from a temporary file, which the page cache holds after the first iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class ReadFromBenchmark {
+    @Param({"md5", "sha1", "sha256", "domains"})
+    public String database;
+
+    @Param({""})
+    public String production;
+
+    private byte[] content;
+    private File mappedFile;
+
+    @Setup
+    public void setup() throws IOException {
+        if (!production.isEmpty()) {
+            content = Files.readAllBytes(new File(production, "hypatia-" + database + "-bloom.bin").toPath());
+            writeMapped(ConcurrentBloomFilter.readFrom(new ByteArrayInputStream(content)));
+            return;
+        }
+        int expected;
+        switch (database) {
+            case "md5":
+                expected = 7600000;
+                break;
+            case "sha1":
+                expected = 100000;
+                break;
+            case "sha256":
+                expected = 2200000;
+                break;
+            default:
+                expected = 4500000;
+                break;
+        }
+        ConcurrentBloomFilter filter = ConcurrentBloomFilter.create(expected, 0.00001);
+        SplittableRandom random = new SplittableRandom(expected);
+        for (int i = 0; i < expected; i++) {
+            filter.put(random.nextLong(), random.nextLong());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) filter.serializedSize());
+        filter.writeTo(out);
+        content = out.toByteArray();
+        writeMapped(filter);
+    }
+
+    private void writeMapped(ConcurrentBloomFilter filter) throws IOException {
+        mappedFile = File.createTempFile("hypatia-" + database + "-", "-mapped.bin");
+        mappedFile.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(mappedFile)) {
+            MappedBloomFilter.write(filter, filter.approximateElementCount(), out);
+        }
+    }
+
+    @Benchmark
+    public BloomFilter<byte[]> guava() throws IOException {
+        return BloomFilter.readFrom(new BufferedInputStream(new ByteArrayInputStream(content)), Funnels.byteArrayFunnel());
+    }
+
+    @Benchmark
+    public ConcurrentBloomFilter concurrent() throws IOException {
+        return ConcurrentBloomFilter.readFrom(new BufferedInputStream(new ByteArrayInputStream(content)));
+    }
+
+    @Benchmark
+    public MappedBloomFilter mapped() throws IOException {
+        return MappedBloomFilter.map(mappedFile);
+    }
+}
@@ -0,0 +1,141 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+
+/**
+ * Deterministic signature lists in every supported format, so the benchmarks run offline.
+ * Like the real feeds they mix in comments, blank lines and a small share of malformed entries.
+ * Run main(directory, scale) to write a raw/, exclusions/ and domains.txt tree that App, Nerd and AppResize can be timed on.
+ */
+public final class SyntheticCorpus {
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final SplittableRandom random;
+
+    public SyntheticCorpus(long seed) {
+        this.random = new SplittableRandom(seed);
+    }
+
+    /**
+     * @return count random lowercase hex digests of hexLength characters, concatenated
+     */
+    public byte[] hex(int count, int hexLength) {
+        byte[] out = new byte[count * hexLength];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = HEX_DIGITS[random.nextInt(16)];
+        }
+        return out;
+    }
+
+    /**
+     * @return count random hex digests of hexLength characters, one array each
+     */
+    public byte[][] keys(int count, int hexLength) {
+        byte[][] keys = new byte[count][];
+        byte[] all = hex(count, hexLength);
+        for (int i = 0; i < count; i++) {
+            keys[i] = new byte[hexLength];
+            System.arraycopy(all, i * hexLength, keys[i], 0, hexLength);
+        }
+        return keys;
+    }
+
+    /**
+     * @return a list of lines signatures long in the layout of format, as it would appear on disk
+     */
+    public byte[] database(HashLineParser.Format format, int lines) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(lines * 80);
+        for (int i = 0; i < lines; i++) {
+            int roll = random.nextInt(1000);
+            if (roll < 5) {
+                write(out, "# comment " + i);
+            } else if (roll < 8) {
+                write(out, "");
+            } else if (roll < 10) {
+                write(out, "not-a-hash-" + i + (format == HashLineParser.Format.CLAMAV ? ":0:Broken" : ""));
+            } else {
+                int hexLength = format == HashLineParser.Format.PLAIN ? 32 : roll < 700 ? 32 : roll < 750 ? 40 : 64;
+                String digest = new String(hex(1, hexLength), StandardCharsets.US_ASCII);
+                if (roll % 7 == 0) {
+                    digest = digest.toUpperCase();
+                }
+                switch (format) {
+                    case CLAMAV:
+                        write(out, digest + ":" + random.nextInt(1 << 24) + ":Synthetic.Malware-" + i + ":73");
+                        break;
+                    case LOKI:
+                        write(out, digest + ";Synthetic sample " + i);
+                        break;
+                    case BEST_EFFORT:
+                        write(out, roll % 3 == 0 ? "  " + digest + " \t" : digest);
+                        break;
+                    default:
+                        write(out, digest);
+                        break;
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return count random domain names, one per line
+     */
+    public byte[] domains(int count) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(count * 24);
+        String[] tlds = {"com", "net", "org", "ru", "xyz", "info"};
+        for (int i = 0; i < count; i++) {
+            StringBuilder domain = new StringBuilder();
+            if (random.nextInt(4) == 0) {
+                domain.append("cdn").append(random.nextInt(100)).append('.');
+            }
+            int length = 6 + random.nextInt(12);
+            for (int c = 0; c < length; c++) {
+                domain.append((char) ('a' + random.nextInt(26)));
+            }
+            domain.append('.').append(tlds[random.nextInt(tlds.length)]);
+            write(out, domain.toString());
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, String line) {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.US_ASCII);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes a corpus of roughly scale million signatures into directory.
+     */
+    public static void main(String[] args) throws IOException {
+        File directory = new File(args.length > 0 ? args[0] : "corpus");
+        double scale = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        SyntheticCorpus corpus = new SyntheticCorpus(42);
+        File raw = new File(directory, "raw");
+        File exclusions = new File(directory, "exclusions");
+        raw.mkdirs();
+        exclusions.mkdirs();
+
+        int lines = (int) (scale * 250_000);
+        write(new File(raw, "synthetic.hdb"), corpus.database(HashLineParser.Format.CLAMAV, lines));
+        write(new File(raw, "synthetic.hsb"), corpus.database(HashLineParser.Format.CLAMAV, lines));
+        write(new File(raw, "synthetic.md5"), corpus.database(HashLineParser.Format.PLAIN, lines));
+        write(new File(raw, "synthetic.loki"), corpus.database(HashLineParser.Format.LOKI, lines / 5));
+        write(new File(raw, "synthetic.txt"), corpus.database(HashLineParser.Format.BEST_EFFORT, lines / 5));
+        write(new File(exclusions, "synthetic.fp"), corpus.database(HashLineParser.Format.CLAMAV, 1000));
+        write(new File(directory, "domains.txt"), corpus.domains((int) (scale * 100_000)));
+        System.out.println("Wrote synthetic corpus to " + directory);
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+    }
+}
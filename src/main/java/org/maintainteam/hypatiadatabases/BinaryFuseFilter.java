@@ -0,0 +1,323 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Static 3-wise binary fuse filter (Graf and Lemire, 2022) over a key set that is known in full before it is built.
+ * Every key maps to three slots in neighbouring segments whose fingerprints xor to its own, so a lookup is three reads.
+ * Fingerprints are bit-packed at whatever width the false positive rate needs, 2^-bits, at about 1.125 slots per key.
+ * Keys are the first half of the Murmur3 x64 128 hash of their ASCII bytes, as for the bloom filters.
+ * The same key set always builds the same file, since keys are sorted first and seeds are drawn in a fixed order.
+ */
+public final class BinaryFuseFilter {
+    static final int MAGIC = 0x48594246; //"HYBF"
+    static final int VERSION = 1;
+    static final int STRATEGY_MURMUR128 = 1;
+    static final int HEADER_SIZE = 64;
+
+    private static final int ARITY = 3;
+    private static final int MAX_SEGMENT_LENGTH = 1 << 18;
+    private static final int MAX_ATTEMPTS = 100;
+
+    private final int fingerprintBits;
+    private final long fingerprintMask;
+    private final long seed;
+    private final long entries;
+    private final int segmentLength;
+    private final int segmentLengthMask;
+    private final int segmentCount;
+    private final int segmentCountLength;
+    private final int arrayLength;
+    private final long[] fingerprints;
+
+    private BinaryFuseFilter(int fingerprintBits, long seed, long entries, int segmentLength, int segmentCount, int arrayLength, long[] fingerprints) {
+        this.fingerprintBits = fingerprintBits;
+        this.fingerprintMask = -1L >>> (Long.SIZE - fingerprintBits);
+        this.seed = seed;
+        this.entries = entries;
+        this.segmentLength = segmentLength;
+        this.segmentLengthMask = segmentLength - 1;
+        this.segmentCount = segmentCount;
+        this.segmentCountLength = segmentCount * segmentLength;
+        this.arrayLength = arrayLength;
+        this.fingerprints = fingerprints;
+    }
+
+    /**
+     * @return the fingerprint width that keeps the false positive rate at or below fpp
+     */
+    public static int fingerprintBits(double fpp) {
+        if (!(fpp > 0.0 && fpp < 1.0)) {
+            throw new IllegalArgumentException("Invalid false positive rate: " + fpp);
+        }
+        return Math.max(1, Math.min(32, (int) Math.ceil(-Math.log(fpp) / Math.log(2))));
+    }
+
+    /**
+     * @return the key a filter is built from and queried with, for the ASCII bytes of a hash or domain
+     */
+    public static long key(byte[] bytes) {
+        long[] hash = new long[2];
+        Murmur3.hash128(bytes, hash);
+        return hash[0];
+    }
+
+    /**
+     * @param keys  keys as returned by key(byte[]), in any order and possibly repeated; the array is left untouched
+     * @param count how many of keys to use
+     */
+    public static BinaryFuseFilter build(long[] keys, int count, int fingerprintBits) {
+        long[] sorted = Arrays.copyOf(keys, count);
+        Arrays.sort(sorted);
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (size == 0 || sorted[i] != sorted[size - 1]) {
+                sorted[size++] = sorted[i];
+            }
+        }
+
+        int segmentLength = size == 0 ? 4 : Math.min(MAX_SEGMENT_LENGTH, 1 << (int) Math.floor(Math.log(size) / Math.log(3.33) + 2.25));
+        double sizeFactor = size <= 1 ? 0 : Math.max(1.125, 0.875 + 0.25 * Math.log(1000000) / Math.log(size));
+        long capacity = Math.round(size * sizeFactor);
+        long arrayLength = ((capacity + segmentLength - 1) / segmentLength) * segmentLength;
+        long segmentCount = (arrayLength + segmentLength - 1) / segmentLength;
+        segmentCount = segmentCount <= ARITY - 1 ? 1 : segmentCount - (ARITY - 1);
+        arrayLength = (segmentCount + ARITY - 1) * segmentLength;
+        if (arrayLength * fingerprintBits / Long.SIZE + 1 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Binary fuse filter too large: " + size + " keys");
+        }
+
+        long[] words = new long[(int) ((arrayLength * fingerprintBits + Long.SIZE - 1) / Long.SIZE)];
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long seed = Murmur3.fmix64(0x9e3779b97f4a7c15L * (attempt + 1));
+            BinaryFuseFilter filter = new BinaryFuseFilter(fingerprintBits, seed, size, segmentLength, (int) segmentCount, (int) arrayLength, words);
+            if (filter.populate(sorted, size)) {
+                return filter;
+            }
+        }
+        throw new IllegalStateException("Could not build a binary fuse filter for " + size + " keys");
+    }
+
+    /**
+     * Peels the key hypergraph and assigns the fingerprints, or returns false if this seed leaves a cycle.
+     */
+    private boolean populate(long[] keys, int size) {
+        //bucket the hashes by the segment they start in, so the passes below walk the slots mostly in order
+        int blockBits = 1;
+        while ((1 << blockBits) < segmentCount) {
+            blockBits++;
+        }
+        int block = 1 << blockBits;
+        long[] reverseOrder = new long[size + 1];
+        reverseOrder[size] = 1;
+        int[] startPos = new int[block];
+        for (int i = 0; i < block; i++) {
+            startPos[i] = (int) (((long) i * size) >> blockBits);
+        }
+        for (int i = 0; i < size; i++) {
+            long hash = hash(keys[i]);
+            int segmentIndex = (int) (hash >>> (Long.SIZE - blockBits));
+            while (reverseOrder[startPos[segmentIndex]] != 0) {
+                segmentIndex = (segmentIndex + 1) & (block - 1);
+            }
+            reverseOrder[startPos[segmentIndex]] = hash;
+            startPos[segmentIndex]++;
+        }
+
+        //per slot: the number of keys on it times 4 plus the xor of which of their three slots it is, and the xor of their hashes
+        byte[] t2count = new byte[arrayLength];
+        long[] t2hash = new long[arrayLength];
+        int countMask = 0;
+        for (int i = 0; i < size; i++) {
+            long hash = reverseOrder[i];
+            for (int hi = 0; hi < ARITY; hi++) {
+                int index = position(hash, hi);
+                t2count[index] += 4;
+                t2count[index] ^= hi;
+                t2hash[index] ^= hash;
+                countMask |= t2count[index];
+            }
+        }
+        if (countMask < 0) {
+            return false; //more than 31 keys on one slot
+        }
+
+        int[] alone = new int[arrayLength];
+        int alonePos = 0;
+        for (int i = 0; i < arrayLength; i++) {
+            alone[alonePos] = i;
+            if ((t2count[i] >> 2) == 1) {
+                alonePos++;
+            }
+        }
+        byte[] reverseH = new byte[size];
+        int[] h012 = new int[5];
+        int reverseOrderPos = 0;
+        while (alonePos > 0) {
+            int index = alone[--alonePos];
+            if ((t2count[index] >> 2) != 1) {
+                continue;
+            }
+            long hash = t2hash[index];
+            int found = t2count[index] & 3;
+            reverseH[reverseOrderPos] = (byte) found;
+            reverseOrder[reverseOrderPos] = hash;
+            positions(hash, h012);
+            for (int other = 1; other < ARITY; other++) {
+                int otherIndex = h012[found + other];
+                alone[alonePos] = otherIndex;
+                if ((t2count[otherIndex] >> 2) == 2) {
+                    alonePos++;
+                }
+                t2count[otherIndex] -= 4;
+                t2count[otherIndex] ^= (found + other) % ARITY;
+                t2hash[otherIndex] ^= hash;
+            }
+            reverseOrderPos++;
+        }
+        if (reverseOrderPos != size) {
+            return false;
+        }
+
+        //assign in reverse peeling order, so each key's own slot is written after the two it shares
+        for (int i = size - 1; i >= 0; i--) {
+            long hash = reverseOrder[i];
+            int found = reverseH[i];
+            positions(hash, h012);
+            set(h012[found], fingerprint(hash) ^ get(h012[found + 1]) ^ get(h012[found + 2]));
+        }
+        return true;
+    }
+
+    private long hash(long key) {
+        return Murmur3.fmix64(key + seed);
+    }
+
+    private int position(long hash, int index) {
+        //unsigned high half of hash * segmentCountLength picks the first segment, the next two follow it
+        long h = Math.multiplyHigh(hash, segmentCountLength) + ((hash >> 63) & segmentCountLength);
+        h += (long) index * segmentLength;
+        long hh = hash & ((1L << 36) - 1);
+        h ^= (hh >>> (36 - 18 * index)) & segmentLengthMask;
+        return (int) h;
+    }
+
+    private void positions(long hash, int[] h012) {
+        h012[0] = position(hash, 0);
+        h012[1] = position(hash, 1);
+        h012[2] = position(hash, 2);
+        h012[3] = h012[0];
+        h012[4] = h012[1];
+    }
+
+    private long fingerprint(long hash) {
+        return (hash ^ (hash >>> 32)) & fingerprintMask;
+    }
+
+    private long get(int slot) {
+        long bit = (long) slot * fingerprintBits;
+        int word = (int) (bit >>> 6);
+        int offset = (int) bit & 63;
+        long value = fingerprints[word] >>> offset;
+        if (offset + fingerprintBits > Long.SIZE) {
+            value |= fingerprints[word + 1] << (Long.SIZE - offset);
+        }
+        return value & fingerprintMask;
+    }
+
+    private void set(int slot, long value) {
+        long bit = (long) slot * fingerprintBits;
+        int word = (int) (bit >>> 6);
+        int offset = (int) bit & 63;
+        fingerprints[word] = (fingerprints[word] & ~(fingerprintMask << offset)) | (value << offset);
+        if (offset + fingerprintBits > Long.SIZE) {
+            int shift = Long.SIZE - offset;
+            fingerprints[word + 1] = (fingerprints[word + 1] & ~(fingerprintMask >>> shift)) | (value >>> shift);
+        }
+    }
+
+    public boolean mightContain(long key) {
+        long hash = hash(key);
+        return (fingerprint(hash) ^ get(position(hash, 0)) ^ get(position(hash, 1)) ^ get(position(hash, 2))) == 0;
+    }
+
+    /**
+     * @param bytes the lowercase hex of a hash, or a domain, as ASCII bytes
+     */
+    public boolean mightContain(byte[] bytes) {
+        return mightContain(key(bytes));
+    }
+
+    public int fingerprintBits() {
+        return fingerprintBits;
+    }
+
+    /**
+     * @return the number of distinct keys the filter was built from
+     */
+    public long entries() {
+        return entries;
+    }
+
+    public double expectedFpp() {
+        return Math.pow(2, -fingerprintBits);
+    }
+
+    public long serializedSize() {
+        return HEADER_SIZE + 8L * fingerprints.length;
+    }
+
+    /**
+     * Writes the header and the packed fingerprints as big-endian longs. The stream is flushed, not closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        dout.writeInt(MAGIC);
+        dout.writeInt(VERSION);
+        dout.writeInt(STRATEGY_MURMUR128);
+        dout.writeInt(fingerprintBits);
+        dout.writeLong(seed);
+        dout.writeLong(entries);
+        dout.writeInt(segmentLength);
+        dout.writeInt(segmentCount);
+        dout.writeInt(arrayLength);
+        dout.write(new byte[HEADER_SIZE - 44]);
+        for (long word : fingerprints) {
+            dout.writeLong(word);
+        }
+        dout.flush();
+    }
+
+    public static BinaryFuseFilter readFrom(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        byte[] header = new byte[HEADER_SIZE];
+        din.readFully(header);
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        if (headerBuffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a binary fuse filter");
+        }
+        if (headerBuffer.getInt(4) != VERSION || headerBuffer.getInt(8) != STRATEGY_MURMUR128) {
+            throw new IOException("Unsupported binary fuse filter version " + headerBuffer.getInt(4) + ", strategy " + headerBuffer.getInt(8));
+        }
+        int fingerprintBits = headerBuffer.getInt(12);
+        int segmentLength = headerBuffer.getInt(32);
+        int segmentCount = headerBuffer.getInt(36);
+        int arrayLength = headerBuffer.getInt(40);
+        if (fingerprintBits < 1 || fingerprintBits > 32 || Integer.bitCount(segmentLength) != 1 || segmentCount <= 0
+                || (long) (segmentCount + ARITY - 1) * segmentLength != arrayLength) {
+            throw new IOException("Invalid binary fuse filter geometry");
+        }
+        long[] words = new long[(int) (((long) arrayLength * fingerprintBits + Long.SIZE - 1) / Long.SIZE)];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = din.readLong();
+        }
+        return new BinaryFuseFilter(fingerprintBits, headerBuffer.getLong(16), headerBuffer.getLong(24), segmentLength, segmentCount, arrayLength, words);
+    }
+}
@@ -0,0 +1,118 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Client side of BlockedBloomFilter: loads a hypatia-*-blocked.bin file and answers lookups.
+ * The blocks are kept off-heap, aligned to 64 bytes, so each lookup reads exactly one cache line.
+ * readFrom copies the file into memory, map leaves it to the page cache.
+ */
+public final class BlockedBloomFilterReader {
+    private final LongBuffer blocks;
+    private final int blockCount;
+    private final long entries;
+
+    private BlockedBloomFilterReader(LongBuffer blocks, int blockCount, long entries) {
+        this.blocks = blocks;
+        this.blockCount = blockCount;
+        this.entries = entries;
+    }
+
+    public static BlockedBloomFilterReader readFrom(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        byte[] header = new byte[BlockedBloomFilter.HEADER_SIZE];
+        din.readFully(header);
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        int blockCount = checkHeader(headerBuffer);
+
+        long size = (long) blockCount * BlockedBloomFilter.BLOCK_BYTES;
+        if (size > Integer.MAX_VALUE - BlockedBloomFilter.BLOCK_BYTES) {
+            throw new IOException("Blocked bloom filter too large: " + blockCount + " blocks");
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect((int) size + BlockedBloomFilter.BLOCK_BYTES).alignedSlice(BlockedBloomFilter.BLOCK_BYTES);
+        data.limit((int) size);
+        byte[] chunk = new byte[1 << 16];
+        while (data.hasRemaining()) {
+            int length = Math.min(chunk.length, data.remaining());
+            din.readFully(chunk, 0, length);
+            data.put(chunk, 0, length);
+        }
+        data.flip();
+        return new BlockedBloomFilterReader(data.asLongBuffer(), blockCount, headerBuffer.getLong(16));
+    }
+
+    /**
+     * Maps the file read-only. Its header is a whole block long, so the blocks keep the page's alignment.
+     */
+    public static BlockedBloomFilterReader map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int blockCount = checkHeader(mapped);
+            long size = (long) blockCount * BlockedBloomFilter.BLOCK_BYTES;
+            if (channel.size() < BlockedBloomFilter.HEADER_SIZE + size) {
+                throw new IOException("Truncated blocked bloom filter: " + file);
+            }
+            ByteBuffer data = mapped.position(BlockedBloomFilter.HEADER_SIZE).limit(BlockedBloomFilter.HEADER_SIZE + (int) size).slice();
+            return new BlockedBloomFilterReader(data.asLongBuffer(), blockCount, mapped.getLong(16));
+        }
+    }
+
+    private static int checkHeader(ByteBuffer header) throws IOException {
+        if (header.getInt(0) != BlockedBloomFilter.MAGIC) {
+            throw new IOException("Not a blocked bloom filter");
+        }
+        if (header.getInt(4) != BlockedBloomFilter.VERSION || header.getInt(8) != BlockedBloomFilter.STRATEGY_MURMUR128) {
+            throw new IOException("Unsupported blocked bloom filter version " + header.getInt(4) + ", strategy " + header.getInt(8));
+        }
+        int blockCount = header.getInt(12);
+        if (blockCount <= 0) {
+            throw new IOException("Invalid block count: " + blockCount);
+        }
+        return blockCount;
+    }
+
+    public boolean mightContain(long hash1, long hash2) {
+        int base = BlockedBloomFilter.block(hash1, blockCount) * BlockedBloomFilter.BLOCK_LONGS;
+        for (int word = 0; word < BlockedBloomFilter.BLOCK_LONGS; word++) {
+            long mask = BlockedBloomFilter.mask(hash2, word);
+            if ((blocks.get(base + word) & mask) != mask) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param key the lowercase hex of a hash, or a domain, as ASCII bytes
+     */
+    public boolean mightContain(byte[] key) {
+        long[] hash = new long[2];
+        Murmur3.hash128(key, hash);
+        return mightContain(hash[0], hash[1]);
+    }
+
+    public int blockCount() {
+        return blockCount;
+    }
+
+    /**
+     * @return the number of keys that were put into the filter
+     */
+    public long entries() {
+        return entries;
+    }
+
+    /**
+     * @return the false positive rate for the keys that were put, spread over the blocks
+     */
+    public double expectedFpp() {
+        return BlockedBloomFilter.expectedFpp((double) entries / blockCount);
+    }
+}
@@ -0,0 +1,300 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers what every database file contributed to the previous run, so an unchanged file is replayed
+ * from a sorted binary snapshot instead of being parsed again.
+ * manifest.tsv records each file's size, modification time, SHA-256 and report counters.
+ * A file whose size and modification time match is trusted as is; if only the modification time changed,
+ * as it does for every fresh download, the content hash decides.
+ * Snapshots hold every hash a file lists, excluded ones included, so exclusions are applied again on replay
+ * and a changed allowlist never forces a re-parse. Replayed counters are those of the run that parsed the file.
+ * Nothing here notices a change to the parser, so a checkpoint must not outlive the code that wrote it:
+ * the stable workflow keys its cached checkpoint on the sources.
+ */
+public final class Checkpoint {
+    private static final String MANIFEST = "manifest.tsv";
+    private static final String HEADER = "#hypatia-checkpoint\t2";
+    private static final int SNAPSHOT_MAGIC = 0x48595053; //"HYPS"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int COUNTERS = 11;
+
+    private static final class Entry {
+        private final String key;
+        private final long size;
+        private final long modified;
+        private final String sha256;
+        private final int[] counters;
+
+        private Entry(String key, long size, long modified, String sha256, int[] counters) {
+            this.key = key;
+            this.size = size;
+            this.modified = modified;
+            this.sha256 = sha256;
+            this.counters = counters;
+        }
+    }
+
+    private final File directory;
+    private final Map<String, Entry> previous = new HashMap<>();
+    private final Map<String, Entry> current = new ConcurrentHashMap<>();
+    private final AtomicInteger amtReplayed = new AtomicInteger();
+
+    private Checkpoint(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the checkpoint in directory, creating it if needed. A missing or unreadable manifest starts from scratch.
+     */
+    public static Checkpoint open(File directory) {
+        Checkpoint checkpoint = new Checkpoint(directory);
+        directory.mkdirs();
+        File manifest = new File(directory, MANIFEST);
+        if (manifest.exists()) {
+            try {
+                List<String> lines = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+                if (!lines.isEmpty() && lines.get(0).equals(HEADER)) {
+                    for (String line : lines.subList(1, lines.size())) {
+                        String[] fields = line.split("\t");
+                        if (fields.length != 4 + COUNTERS) {
+                            continue;
+                        }
+                        int[] counters = new int[COUNTERS];
+                        for (int i = 0; i < COUNTERS; i++) {
+                            counters[i] = Integer.parseInt(fields[4 + i]);
+                        }
+                        checkpoint.previous.put(fields[0], new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3], counters));
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                checkpoint.previous.clear();
+            }
+        }
+        return checkpoint;
+    }
+
+    public int size() {
+        return previous.size();
+    }
+
+    public int amtReplayed() {
+        return amtReplayed.get();
+    }
+
+    /**
+     * @return the report of the run that last parsed database, with its snapshot loaded into hashes,
+     * or null if the file changed or was never recorded
+     */
+    public FileReport replay(File database) {
+        Entry entry = previous.get(key(database));
+        if (entry == null || entry.size != database.length()) {
+            return null;
+        }
+        try {
+            long modified = database.lastModified();
+            if (modified != entry.modified && !entry.sha256.equals(sha256(database))) {
+                return null;
+            }
+
+            long start = System.nanoTime();
+            FileReport result = new FileReport();
+            result.hashes = readSnapshot(snapshotFile(entry.key));
+            setCounters(result, entry.counters);
+            File log = logFile(entry.key);
+            if (log.exists()) {
+                for (String line : Files.readAllLines(log.toPath(), StandardCharsets.UTF_8)) {
+                    result.println(line);
+                }
+            }
+            result.println("\t\tUnchanged, replayed from checkpoint");
+            result.amtBytes = entry.size;
+            result.nanos = System.nanoTime() - start;
+            current.put(entry.key, new Entry(entry.key, entry.size, modified, entry.sha256, entry.counters));
+            amtReplayed.incrementAndGet();
+            return result;
+        } catch (IOException e) {
+            return null; //fall back to parsing the file again
+        }
+    }
+
+    /**
+     * Records a freshly parsed database, whose report must hold every hash it lists.
+     */
+    public void record(File database, FileReport result) {
+        String key = key(database);
+        try {
+            long size = database.length();
+            long modified = database.lastModified();
+            String sha256 = sha256(database);
+            writeSnapshot(snapshotFile(key), result.hashes != null ? result.hashes : new DigestSets());
+            String log = result.log();
+            File logFile = logFile(key);
+            if (log.isEmpty()) {
+                Files.deleteIfExists(logFile.toPath());
+            } else {
+                Files.write(logFile.toPath(), log.getBytes(StandardCharsets.UTF_8));
+            }
+            current.put(key, new Entry(key, size, modified, sha256, getCounters(result)));
+        } catch (IOException e) {
+            result.println("\t\tFailed to write checkpoint: " + e);
+        }
+    }
+
+    /**
+     * Writes the manifest for the files seen in this run and deletes the snapshots of files that are gone.
+     */
+    public void save() {
+        File manifest = new File(directory, MANIFEST);
+        File temporary = new File(directory, MANIFEST + ".tmp");
+        try (PrintWriter out = new PrintWriter(temporary, StandardCharsets.UTF_8)) {
+            out.println(HEADER);
+            for (Entry entry : new TreeMap<>(current).values()) {
+                StringBuilder line = new StringBuilder();
+                line.append(entry.key).append('\t').append(entry.size).append('\t').append(entry.modified).append('\t').append(entry.sha256);
+                for (int counter : entry.counters) {
+                    line.append('\t').append(counter);
+                }
+                out.println(line);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(temporary.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        List<String> keep = new ArrayList<>();
+        for (String key : current.keySet()) {
+            keep.add(snapshotFile(key).getName());
+            keep.add(logFile(key).getName());
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if ((name.endsWith(".snap") || name.endsWith(".log")) && !keep.contains(name)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private static String key(File database) {
+        File parent = database.getAbsoluteFile().getParentFile();
+        return (parent == null ? "" : parent.getName() + "/") + database.getName();
+    }
+
+    private File snapshotFile(String key) {
+        return new File(directory, key.replace('/', '_') + ".snap");
+    }
+
+    private File logFile(String key) {
+        return new File(directory, key.replace('/', '_') + ".log");
+    }
+
+    private static void writeSnapshot(File snapshot, DigestSets hashes) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapshot), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            for (PackedHashSet set : hashes.sets()) {
+                long[] keys = set.toSortedKeys();
+                out.writeInt(set.size());
+                for (int i = 0; i < set.size(); i++) {
+                    SortedDigests.write(out, keys, i, set.digestLength());
+                }
+            }
+        }
+    }
+
+    private static DigestSets readSnapshot(File snapshot) throws IOException {
+        DigestSets hashes = new DigestSets();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not a checkpoint snapshot: " + snapshot);
+            }
+            for (PackedHashSet set : hashes.sets()) {
+                int count = in.readInt();
+                long[] keys = new long[count * SortedDigests.words(set.digestLength())];
+                for (int i = 0; i < count; i++) {
+                    SortedDigests.read(in, keys, i, set.digestLength());
+                }
+                set.addKeys(keys, count);
+            }
+        }
+        return hashes;
+    }
+
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static int[] getCounters(FileReport result) {
+        return new int[]{
+                result.amtLinesValid, result.amtLinesInvalid, result.amtLinesExcluded, result.amtLinesDuplicate,
+                result.amtSignaturesReadMD5, result.amtSignaturesReadSHA1, result.amtSignaturesReadSHA256,
+                result.amtSignaturesAddedMD5, result.amtSignaturesDedupedMD5, result.amtSignaturesAddedSHA1, result.amtSignaturesAddedSHA256
+        };
+    }
+
+    private static void setCounters(FileReport result, int[] counters) {
+        result.amtLinesValid = counters[0];
+        result.amtLinesInvalid = counters[1];
+        result.amtLinesExcluded = counters[2];
+        result.amtLinesDuplicate = counters[3];
+        result.amtSignaturesReadMD5 = counters[4];
+        result.amtSignaturesReadSHA1 = counters[5];
+        result.amtSignaturesReadSHA256 = counters[6];
+        result.amtSignaturesAddedMD5 = counters[7];
+        result.amtSignaturesDedupedMD5 = counters[8];
+        result.amtSignaturesAddedSHA1 = counters[9];
+        result.amtSignaturesAddedSHA256 = counters[10];
+    }
+}
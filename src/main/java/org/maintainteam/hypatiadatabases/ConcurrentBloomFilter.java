@@ -0,0 +1,238 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bloom filter that many threads can fill at once, taking keys already hashed with Murmur3 x64 128.
+ * Sizing, bit positions and the serialized form follow Guava's BloomFilter with the MURMUR128_MITZ_64 strategy,
+ * so writeTo produces a file that BloomFilter.readFrom on the client loads as if Guava had built it.
+ */
+public final class ConcurrentBloomFilter {
+    private static final int MURMUR128_MITZ_64 = 1;
+    private static final double STICKY_HEADROOM = 1.25;
+
+    private final AtomicLongArray data;
+    private final long bitSize;
+    private final int numHashFunctions;
+    private final LongAdder bitCount = new LongAdder();
+
+    private ConcurrentBloomFilter(long[] words, int numHashFunctions) {
+        this.data = new AtomicLongArray(words);
+        this.bitSize = (long) words.length * Long.SIZE;
+        this.numHashFunctions = numHashFunctions;
+        long bits = 0;
+        for (long word : words) {
+            bits += Long.bitCount(word);
+        }
+        bitCount.add(bits);
+    }
+
+    /**
+     * Same geometry as BloomFilter.create(funnel, expectedInsertions, fpp).
+     */
+    public static ConcurrentBloomFilter create(long expectedInsertions, double fpp) {
+        if (expectedInsertions < 0 || !(fpp > 0.0 && fpp < 1.0)) {
+            throw new IllegalArgumentException("Invalid sizing: " + expectedInsertions + " insertions at " + fpp);
+        }
+        if (expectedInsertions == 0) {
+            expectedInsertions = 1;
+        }
+        long numBits = optimalNumOfBits(expectedInsertions, fpp);
+        int numHashFunctions = optimalNumOfHashFunctions(expectedInsertions, numBits);
+        long words = (numBits + Long.SIZE - 1) / Long.SIZE;
+        if (words > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter too large: " + numBits + " bits");
+        }
+        return new ConcurrentBloomFilter(new long[(int) words], numHashFunctions);
+    }
+
+    /**
+     * Like create, but keeps the geometry of the previous generation's filter while it is at least as large as create would make it
+     * for expectedInsertions and not more than twice that, so consecutive files only differ in the bits of keys that changed.
+     * Otherwise the filter is sized with STICKY_HEADROOM, so that the geometry can be kept for the next runs.
+     *
+     * @param previous a file written by writeTo, or one that does not exist
+     */
+    public static ConcurrentBloomFilter create(long expectedInsertions, double fpp, File previous) throws IOException {
+        long needed = (optimalNumOfBits(Math.max(expectedInsertions, 1), fpp) + Long.SIZE - 1) / Long.SIZE;
+        if (previous.exists()) {
+            try (DataInputStream din = new DataInputStream(new FileInputStream(previous))) {
+                int strategy = din.readByte();
+                int numHashFunctions = din.readUnsignedByte();
+                int dataLength = din.readInt();
+                if (strategy == MURMUR128_MITZ_64 && numHashFunctions > 0 && dataLength >= needed && dataLength <= 2 * needed) {
+                    return new ConcurrentBloomFilter(new long[dataLength], numHashFunctions);
+                }
+            }
+        }
+        return create((long) Math.ceil(Math.max(expectedInsertions, 1) * STICKY_HEADROOM), fpp);
+    }
+
+    static long optimalNumOfBits(long n, double p) {
+        return (long) (-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+    }
+
+    static int optimalNumOfHashFunctions(long n, long m) {
+        return Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+
+    /**
+     * @param hash1 low half of the Murmur3 x64 128 hash of the key
+     * @param hash2 high half of the hash
+     * @return true if any bit changed, meaning the key was definitely not present before
+     */
+    public boolean put(long hash1, long hash2) {
+        boolean bitsChanged = false;
+        long combinedHash = hash1;
+        for (int i = 0; i < numHashFunctions; i++) {
+            bitsChanged |= set((combinedHash & Long.MAX_VALUE) % bitSize);
+            combinedHash += hash2;
+        }
+        return bitsChanged;
+    }
+
+    public boolean mightContain(long hash1, long hash2) {
+        long combinedHash = hash1;
+        for (int i = 0; i < numHashFunctions; i++) {
+            if (!get((combinedHash & Long.MAX_VALUE) % bitSize)) {
+                return false;
+            }
+            combinedHash += hash2;
+        }
+        return true;
+    }
+
+    /**
+     * mightContain for count keys at once, with hash1 and hash2 of the i'th key at hashes[2i] and hashes[2i + 1].
+     * Every key's first bit is tested before any key's second, so the cache misses of different keys overlap
+     * instead of each waiting for the one before it.
+     */
+    public void mightContain(long[] hashes, int count, boolean[] results) {
+        long[] combinedHashes = new long[count];
+        int[] pending = new int[count];
+        for (int i = 0; i < count; i++) {
+            combinedHashes[i] = hashes[2 * i];
+            pending[i] = i;
+            results[i] = true;
+        }
+        int amtPending = count;
+        for (int round = 0; round < numHashFunctions && amtPending > 0; round++) {
+            int amtKept = 0;
+            for (int p = 0; p < amtPending; p++) {
+                int i = pending[p];
+                if (get((combinedHashes[i] & Long.MAX_VALUE) % bitSize)) {
+                    combinedHashes[i] += hashes[2 * i + 1];
+                    pending[amtKept++] = i;
+                } else {
+                    results[i] = false;
+                }
+            }
+            amtPending = amtKept;
+        }
+    }
+
+    /**
+     * Hashes the key bytes, equivalent to putting the same ASCII text through Funnels.stringFunnel(US_ASCII).
+     */
+    public boolean put(byte[] key) {
+        long[] hash = new long[2];
+        Murmur3.hash128(key, hash);
+        return put(hash[0], hash[1]);
+    }
+
+    public boolean mightContain(byte[] key) {
+        long[] hash = new long[2];
+        Murmur3.hash128(key, hash);
+        return mightContain(hash[0], hash[1]);
+    }
+
+    private boolean set(long bitIndex) {
+        int longIndex = (int) (bitIndex >>> 6);
+        long mask = 1L << bitIndex;
+        long oldValue;
+        long newValue;
+        do {
+            oldValue = data.get(longIndex);
+            newValue = oldValue | mask;
+            if (oldValue == newValue) {
+                return false;
+            }
+        } while (!data.compareAndSet(longIndex, oldValue, newValue));
+        bitCount.increment();
+        return true;
+    }
+
+    private boolean get(long bitIndex) {
+        return (data.get((int) (bitIndex >>> 6)) & (1L << bitIndex)) != 0;
+    }
+
+    public int numHashFunctions() {
+        return numHashFunctions;
+    }
+
+    public long bitSize() {
+        return bitSize;
+    }
+
+    public long word(int index) {
+        return data.get(index);
+    }
+
+    public int wordCount() {
+        return data.length();
+    }
+
+    public double expectedFpp() {
+        return Math.pow((double) bitCount.sum() / bitSize, numHashFunctions);
+    }
+
+    public long approximateElementCount() {
+        double fractionOfBitsSet = (double) bitCount.sum() / bitSize;
+        return Math.round(-Math.log1p(-fractionOfBitsSet) * bitSize / numHashFunctions);
+    }
+
+    /**
+     * @return the number of bytes writeTo writes
+     */
+    public long serializedSize() {
+        return 1 + 1 + 4 + 8L * data.length();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out));
+        dout.writeByte(MURMUR128_MITZ_64);
+        dout.writeByte(numHashFunctions);
+        dout.writeInt(data.length());
+        for (int i = 0; i < data.length(); i++) {
+            dout.writeLong(data.get(i));
+        }
+        dout.flush();
+    }
+
+    /**
+     * Reads a filter written by writeTo or by Guava's BloomFilter.writeTo.
+     */
+    public static ConcurrentBloomFilter readFrom(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        int strategy = din.readByte();
+        int numHashFunctions = din.readUnsignedByte();
+        int dataLength = din.readInt();
+        if (strategy != MURMUR128_MITZ_64) {
+            throw new IOException("Unsupported bloom filter strategy: " + strategy);
+        }
+        long[] words = new long[dataLength];
+        for (int i = 0; i < dataLength; i++) {
+            words[i] = din.readLong();
+        }
+        return new ConcurrentBloomFilter(words, numHashFunctions);
+    }
+}
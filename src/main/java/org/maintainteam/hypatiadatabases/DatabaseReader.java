@@ -0,0 +1,96 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+/**
+ * Feeds a database file through HashLineParser.
+ * Plain files are memory-mapped and parsed straight from the mapping; files over hypatia.chunkSize bytes
+ * (64 MiB by default) are cut at line boundaries into chunks that other pool workers can steal.
+ * Only .gz files are streamed, through a GzipPipeline.
+ */
+public final class DatabaseReader {
+    public static final long CHUNK_SIZE = Math.min(1L << 30, Math.max(1L << 16, Long.getLong("hypatia.chunkSize", 64L << 20)));
+
+    private DatabaseReader() {
+    }
+
+    /**
+     * @param sinkFactory creates the sink for one chunk, called on the thread that parses it
+     */
+    public static FileReport read(File database, HashLineParser.Format format, Function<FileReport, HashLineParser.Sink> sinkFactory) {
+        long start = System.nanoTime();
+        FileReport result = new FileReport();
+        try {
+            if (database.getName().endsWith(".gz")) {
+                GzipPipeline.read(database, format, sinkFactory, result);
+            } else {
+                readMapped(database, format, sinkFactory, result);
+            }
+        } catch (Exception e) {
+            result.error = e;
+        }
+        result.amtBytes = database.length();
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static void readMapped(File database, HashLineParser.Format format, Function<FileReport, HashLineParser.Sink> sinkFactory, FileReport result) throws IOException {
+        try (FileChannel channel = FileChannel.open(database.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<long[]> chunks = new ArrayList<>();
+            long start = 0;
+            while (start < size) {
+                long end = start + CHUNK_SIZE >= size ? size : nextLineStart(channel, start + CHUNK_SIZE, size);
+                chunks.add(new long[]{start, end});
+                start = end;
+            }
+
+            List<ForkJoinTask<FileReport>> tasks = new ArrayList<>(chunks.size());
+            for (long[] chunk : chunks) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+                tasks.add(ForkJoinTask.adapt(() -> {
+                    FileReport part = new FileReport();
+                    new HashLineParser(format, sinkFactory.apply(part)).parse(mapped, true);
+                    return part;
+                }));
+            }
+            if (tasks.size() > 1 && ForkJoinTask.inForkJoinPool()) {
+                ForkJoinTask.invokeAll(tasks);
+            } else {
+                for (ForkJoinTask<FileReport> task : tasks) {
+                    task.invoke();
+                }
+            }
+            for (ForkJoinTask<FileReport> task : tasks) {
+                result.add(task.join());
+            }
+        }
+    }
+
+    private static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(8192);
+        while (position < size) {
+            window.clear();
+            int read = channel.read(window, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (window.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+}
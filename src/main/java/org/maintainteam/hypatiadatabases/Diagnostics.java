@@ -0,0 +1,124 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-line diagnostics, such as rejected or excluded hashes, written by a background thread so a slow console or disk never stalls the workers.
+ * Lines wait in a queue of -Dhypatia.diagnosticsBuffer lines (65536 by default); once it is full they are dropped and counted instead.
+ * Written to the file named by -Dhypatia.diagnostics, or to standard error.
+ */
+public final class Diagnostics {
+    private static final int CAPACITY = Math.max(1, Integer.getInteger("hypatia.diagnosticsBuffer", 1 << 16));
+    public static final String TARGET = System.getProperty("hypatia.diagnostics");
+    //queued by close, the writer stops once it takes it
+    private static final String END = new String("end");
+
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private static final LongAdder amtQueued = new LongAdder();
+    private static final LongAdder amtDropped = new LongAdder();
+    private static final Thread writer = new Thread(Diagnostics::write, "hypatia-diagnostics");
+    private static volatile boolean closed = false;
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Diagnostics() {
+    }
+
+    /**
+     * Queues a line without ever waiting for the writer.
+     */
+    public static void println(String line) {
+        if (!closed && queue.offer(line)) {
+            amtQueued.increment();
+        } else {
+            amtDropped.increment();
+        }
+    }
+
+    /**
+     * Writes out every queued line and stops the writer. Lines passed to println afterwards are dropped.
+     */
+    public static void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static long amtWritten() {
+        return amtQueued.sum();
+    }
+
+    public static long amtDropped() {
+        return amtDropped.sum();
+    }
+
+    private static void write() {
+        OutputStream out = System.err;
+        try {
+            if (TARGET != null) {
+                out = new FileOutputStream(TARGET);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Writer lines = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        boolean failed = false;
+        boolean ended = false;
+        List<String> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            try {
+                for (String line : batch) {
+                    if (line == END) {
+                        ended = true;
+                        lines.flush();
+                        if (out != System.err) {
+                            lines.close();
+                        }
+                        return;
+                    }
+                    if (!failed) {
+                        lines.write(line);
+                        lines.write(System.lineSeparator());
+                    }
+                }
+                if (!failed && queue.isEmpty()) {
+                    lines.flush();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                failed = true; //keep taking lines so that workers and close never wait on a full queue
+            }
+            if (ended) {
+                return;
+            }
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * One PackedHashSet per supported hash type, picked by the length of the hex digest.
+ */
+public final class DigestSets {
+    public final PackedHashSet md5 = new PackedHashSet(16);
+    public final PackedHashSet sha1 = new PackedHashSet(20);
+    public final PackedHashSet sha256 = new PackedHashSet(32);
+
+    /**
+     * @param hex lowercase hex of length 32, 40 or 64
+     */
+    public boolean add(byte[] hex) {
+        return set(hex.length).add(hex);
+    }
+
+    public void addAll(DigestSets other) {
+        md5.addAll(other.md5);
+        sha1.addAll(other.sha1);
+        sha256.addAll(other.sha256);
+    }
+
+    /**
+     * Adds the entries of other for which keep returns true, called with their lowercase hex.
+     */
+    public void addAll(DigestSets other, Predicate<byte[]> keep) {
+        PackedHashSet[] sources = other.sets();
+        PackedHashSet[] targets = sets();
+        for (int i = 0; i < targets.length; i++) {
+            PackedHashSet target = targets[i];
+            target.ensureCapacity(target.size() + sources[i].size());
+            sources[i].forEachHex(hex -> {
+                if (keep.test(hex)) target.add(hex);
+            });
+        }
+    }
+
+    public int size() {
+        return md5.size() + sha1.size() + sha256.size();
+    }
+
+    /**
+     * Calls action with the lowercase hex of every entry, grouped by type.
+     * The array passed is reused between calls and must not be retained.
+     */
+    public void forEachHex(Consumer<byte[]> action) {
+        md5.forEachHex(action);
+        sha1.forEachHex(action);
+        sha256.forEachHex(action);
+    }
+
+    /**
+     * @return md5, sha1 and sha256, in the order they are written to binary files
+     */
+    public PackedHashSet[] sets() {
+        return new PackedHashSet[]{md5, sha1, sha256};
+    }
+
+    private PackedHashSet set(int hexLength) {
+        switch (hexLength) {
+            case 32:
+                return md5;
+            case 40:
+                return sha1;
+            case 64:
+                return sha256;
+            default:
+                throw new IllegalArgumentException("Unsupported hash length: " + hexLength);
+        }
+    }
+}
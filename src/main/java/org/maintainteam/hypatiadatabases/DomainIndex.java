@@ -0,0 +1,277 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.IDN;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Answers whether a host or any of its parent domains is listed, in one call.
+ * Built from the listed domains with every subdomain of another listed domain removed, as those can never change an answer.
+ * The remaining domains go into a BinaryFuseFilter, together with a mask of the label counts that occur,
+ * so a lookup only probes the suffixes of the host that are as deep as some listed domain: at most one probe per label.
+ */
+public final class DomainIndex {
+    static final int MAGIC = 0x48594449; //"HYDI"
+    static final int VERSION = 1;
+    private static final int MAX_LENGTH = 253;
+    private static final int MAX_LABEL_LENGTH = 63;
+    //sorts before every character a label can hold, so a domain's subdomains directly follow it once labels are reversed
+    private static final char REVERSED_SEPARATOR = '\u0001';
+
+    //bit d is set if a listed domain has d labels, bit 63 stands for 63 or more
+    private final long depths;
+    private final BinaryFuseFilter filter;
+
+    private DomainIndex(long depths, BinaryFuseFilter filter) {
+        this.depths = depths;
+        this.filter = filter;
+    }
+
+    /**
+     * Reduces a line of a domain list to the host it lists: comments, hosts file addresses and wildcard prefixes are dropped,
+     * the rest is lowercased and internationalized names are converted to their ASCII form.
+     *
+     * @return the host, or null if the line does not list one
+     */
+    public static String normalize(String line) {
+        int comment = line.indexOf('#');
+        if (comment >= 0) {
+            line = line.substring(0, comment);
+        }
+        line = line.trim();
+        int space = lastWhitespace(line);
+        if (space >= 0) {
+            line = line.substring(space + 1); //hosts file format, such as "0.0.0.0 example.com"
+        }
+        if (line.startsWith("*.")) {
+            line = line.substring(2);
+        }
+        while (line.startsWith(".")) {
+            line = line.substring(1);
+        }
+        while (line.endsWith(".")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        if (line.isEmpty()) {
+            return null;
+        }
+        if (!isAscii(line)) {
+            try {
+                line = IDN.toASCII(line, IDN.ALLOW_UNASSIGNED);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        line = line.toLowerCase(Locale.ROOT);
+        return isValid(line) ? line : null;
+    }
+
+    /**
+     * Calls action with the host listed on every line of a domain list that lists one, as normalized by normalize.
+     *
+     * @return the number of lines read
+     */
+    public static int forEachDomain(File domainDatabase, Consumer<String> action) {
+        int amtRead = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(domainDatabase), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String domain = normalize(line);
+                if (domain != null) {
+                    action.accept(domain);
+                }
+                amtRead++;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return amtRead;
+    }
+
+    private static int lastWhitespace(String line) {
+        for (int i = line.length() - 1; i >= 0; i--) {
+            if (Character.isWhitespace(line.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isAscii(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValid(String host) {
+        if (host.length() > MAX_LENGTH) {
+            return false;
+        }
+        int labelLength = 0;
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c == '.') {
+                if (labelLength == 0) {
+                    return false;
+                }
+                labelLength = 0;
+            } else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_') {
+                if (++labelLength > MAX_LABEL_LENGTH) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        return labelLength > 0;
+    }
+
+    /**
+     * @param domains normalized domains, possibly repeated
+     * @return the distinct domains that are not a subdomain of another one, ordered by their reversed labels
+     */
+    public static List<String> collapse(Collection<String> domains) {
+        String[] reversed = new String[domains.size()];
+        int count = 0;
+        for (String domain : domains) {
+            reversed[count++] = reverse(domain, '.', REVERSED_SEPARATOR);
+        }
+        Arrays.sort(reversed, 0, count);
+
+        List<String> kept = new ArrayList<>();
+        String parent = null;
+        for (int i = 0; i < count; i++) {
+            String domain = reversed[i];
+            if (parent != null && (domain.equals(parent) || (domain.startsWith(parent) && domain.charAt(parent.length()) == REVERSED_SEPARATOR))) {
+                continue;
+            }
+            parent = domain;
+            kept.add(reverse(domain, REVERSED_SEPARATOR, '.'));
+        }
+        return kept;
+    }
+
+    /**
+     * With from '.' and to REVERSED_SEPARATOR, "b.evil.com" becomes "com\1evil\1b", and the other way around back.
+     */
+    private static String reverse(String domain, char from, char to) {
+        StringBuilder reversed = new StringBuilder(domain.length());
+        int end = domain.length();
+        for (int i = domain.length() - 1; i >= -1; i--) {
+            if (i < 0 || domain.charAt(i) == from) {
+                if (reversed.length() > 0) {
+                    reversed.append(to);
+                }
+                reversed.append(domain, i + 1, end);
+                end = i;
+            }
+        }
+        return reversed.toString();
+    }
+
+    /**
+     * @param domains the output of collapse
+     */
+    public static DomainIndex build(List<String> domains, double fpp) {
+        long depths = 0;
+        long[] keys = new long[domains.size()];
+        for (int i = 0; i < keys.length; i++) {
+            String domain = domains.get(i);
+            depths |= depthBit(labels(domain));
+            keys[i] = BinaryFuseFilter.key(domain.getBytes(StandardCharsets.US_ASCII));
+        }
+        return new DomainIndex(depths, BinaryFuseFilter.build(keys, keys.length, BinaryFuseFilter.fingerprintBits(fpp)));
+    }
+
+    private static int labels(String domain) {
+        int labels = 1;
+        for (int i = 0; i < domain.length(); i++) {
+            if (domain.charAt(i) == '.') {
+                labels++;
+            }
+        }
+        return labels;
+    }
+
+    private static long depthBit(int labels) {
+        return 1L << Math.min(labels, Long.SIZE - 1);
+    }
+
+    /**
+     * @param host a host name in any case, such as from a URL or DNS query
+     * @return true if the host or one of its parent domains might be listed, false if none of them are
+     */
+    public boolean matches(String host) {
+        host = normalize(host);
+        if (host == null) {
+            return false;
+        }
+        int labels = labels(host);
+        int start = 0;
+        while (true) {
+            if ((depths & depthBit(labels)) != 0 && filter.mightContain(host.substring(start).getBytes(StandardCharsets.US_ASCII))) {
+                return true;
+            }
+            int dot = host.indexOf('.', start);
+            if (dot < 0) {
+                return false;
+            }
+            start = dot + 1;
+            labels--;
+        }
+    }
+
+    /**
+     * @return the number of domains in the index, after collapsing
+     */
+    public long size() {
+        return filter.entries();
+    }
+
+    public long serializedSize() {
+        return 16 + filter.serializedSize();
+    }
+
+    /**
+     * Writes the header and the filter. The stream is flushed, not closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out));
+        dout.writeInt(MAGIC);
+        dout.writeInt(VERSION);
+        dout.writeLong(depths);
+        dout.flush();
+        filter.writeTo(out);
+    }
+
+    public static DomainIndex readFrom(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        if (din.readInt() != MAGIC) {
+            throw new IOException("Not a domain index");
+        }
+        int version = din.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported domain index version " + version);
+        }
+        long depths = din.readLong();
+        return new DomainIndex(depths, BinaryFuseFilter.readFrom(din));
+    }
+}
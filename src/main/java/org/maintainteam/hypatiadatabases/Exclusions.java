@@ -0,0 +1,190 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Hashes that must never be added to a database, such as the ClamAV .fp/.sfp allowlists.
+ * Each hash type is kept as a sorted array of packed digests with a bucket table over the leading bits,
+ * so a lookup decodes only the first 16 hex characters before an empty bucket rules most candidates out.
+ * Immutable once built, and safe to query from any number of threads.
+ */
+public final class Exclusions {
+    private final Index md5;
+    private final Index sha1;
+    private final Index sha256;
+
+    public Exclusions() {
+        this(new DigestSets());
+    }
+
+    public Exclusions(DigestSets hashes) {
+        this.md5 = new Index(hashes.md5);
+        this.sha1 = new Index(hashes.sha1);
+        this.sha256 = new Index(hashes.sha256);
+    }
+
+    /**
+     * Loads every file in directory, in name order, printing each name as it goes.
+     */
+    public static Exclusions load(File directory) {
+        DigestSets hashes = new DigestSets();
+        HashLineParser.Sink sink = new HashLineParser.Sink() {
+            @Override
+            public void hash(byte[] hex) {
+                hashes.add(hex);
+            }
+
+            @Override
+            public void rejected(HashLineParser.Rejection reason, ByteBuffer line, int start, int end) {
+            }
+        };
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        for (File exclusionDatabase : files) {
+            System.out.println("\t" + exclusionDatabase.getName());
+            try (InputStream input = new FileInputStream(exclusionDatabase)) {
+                new HashLineParser(HashLineParser.Format.CLAMAV, sink).parse(input);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return new Exclusions(hashes);
+    }
+
+    /**
+     * @param hex lowercase hex of length 32, 40 or 64
+     */
+    public boolean contains(byte[] hex) {
+        return index(hex.length).contains(hex);
+    }
+
+    public int size() {
+        return md5.count + sha1.count + sha256.count;
+    }
+
+    /**
+     * Calls action with the lowercase hex of every excluded hash, md5 first, each type in sorted order.
+     * The array passed is reused between calls and must not be retained.
+     */
+    public void forEachHex(Consumer<byte[]> action) {
+        for (Index index : new Index[]{md5, sha1, sha256}) {
+            byte[] hex = new byte[index.digestLength * 2];
+            for (int i = 0; i < index.count; i++) {
+                SortedDigests.encode(index.keys, i, index.digestLength, hex);
+                action.accept(hex);
+            }
+        }
+    }
+
+    /**
+     * Tests every excluded hash of one length against matches in parallel, such as the mightContain of a filter of that type.
+     *
+     * @param hexLength 32, 40 or 64
+     * @return the lowercase hex of every excluded hash of that length that matched, in sorted order
+     */
+    public List<String> matching(int hexLength, Predicate<byte[]> matches) {
+        Index index = index(hexLength);
+        int parts = Math.max(1, Math.min(ParallelIngest.THREADS * 4, index.count / 1024));
+        List<List<String>> found = new ArrayList<>();
+        for (int part = 0; part < parts; part++) {
+            found.add(new ArrayList<>());
+        }
+        ParallelIngest.forEachPart(parts, part -> {
+            byte[] hex = new byte[index.digestLength * 2];
+            int from = (int) ((long) index.count * part / parts);
+            int to = (int) ((long) index.count * (part + 1) / parts);
+            for (int i = from; i < to; i++) {
+                SortedDigests.encode(index.keys, i, index.digestLength, hex);
+                if (matches.test(hex)) {
+                    found.get(part).add(new String(hex, StandardCharsets.US_ASCII));
+                }
+            }
+        });
+        List<String> matched = new ArrayList<>();
+        for (List<String> part : found) {
+            matched.addAll(part);
+        }
+        return matched;
+    }
+
+    private Index index(int hexLength) {
+        switch (hexLength) {
+            case 32:
+                return md5;
+            case 40:
+                return sha1;
+            case 64:
+                return sha256;
+            default:
+                throw new IllegalArgumentException("Unsupported hash length: " + hexLength);
+        }
+    }
+
+    private static final class Index {
+        private static final int MIN_BUCKET_BITS = 4;
+        private static final int MAX_BUCKET_BITS = 20;
+
+        private final int digestLength;
+        private final int words;
+        private final int count;
+        private final long[] keys;
+        //digests whose leading bucketBits bits are b sit at [buckets[b], buckets[b + 1]) in keys
+        private final int[] buckets;
+        private final int shift;
+
+        private Index(PackedHashSet hashes) {
+            this.digestLength = hashes.digestLength();
+            this.words = SortedDigests.words(digestLength);
+            this.count = hashes.size();
+            this.keys = hashes.toSortedKeys();
+
+            //about one digest per bucket, so a hit usually compares a single entry
+            int bucketBits = Math.max(MIN_BUCKET_BITS, Math.min(MAX_BUCKET_BITS, 32 - Integer.numberOfLeadingZeros(count)));
+            this.shift = 64 - bucketBits;
+            this.buckets = new int[(1 << bucketBits) + 1];
+            for (int i = 0; i < count; i++) {
+                buckets[(int) (keys[i * words] >>> shift) + 1]++;
+            }
+            for (int b = 1; b < buckets.length; b++) {
+                buckets[b] += buckets[b - 1];
+            }
+        }
+
+        private boolean contains(byte[] hex) {
+            if (count == 0) {
+                return false;
+            }
+            long first = SortedDigests.decodeWord(hex, 0, digestLength);
+            int bucket = (int) (first >>> shift);
+            int from = buckets[bucket];
+            int to = buckets[bucket + 1];
+            if (from == to) {
+                return false;
+            }
+            for (int i = from; i < to; i++) {
+                if (keys[i * words] == first && matchesRest(i, hex)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matchesRest(int i, byte[] hex) {
+            for (int w = 1; w < words; w++) {
+                if (keys[i * words + w] != SortedDigests.decodeWord(hex, w, digestLength)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Deduplicates more digests of one length than fit in memory.
+ * Each worker packs the hex it adds into its own run of at most budget / (2 * threads) bytes; a full run is sorted,
+ * deduplicated and spilled to a temporary file by the worker that filled it, so runs are sorted in parallel.
+ * finish merges the runs, at most FAN_IN at a time, into one sorted file of unique digests that filters are built from
+ * by streaming it, so memory stays within the budget however many digests are added.
+ */
+public final class ExternalDedupe {
+    private static final int FAN_IN = 64;
+    private static final int MIN_RUN_ENTRIES = 1 << 10;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final int digestLength;
+    private final int words;
+    private final int maxRunEntries;
+    private final File directory;
+    private final ParallelIngest.PerThread<Run> runs = new ParallelIngest.PerThread<>(Run::new);
+    private final List<RunFile> spilled = new ArrayList<>();
+
+    /**
+     * A sorted file of unique digests and how many it holds.
+     */
+    public static final class RunFile {
+        public final File file;
+        public final int count;
+
+        private RunFile(File file, int count) {
+            this.file = file;
+            this.count = count;
+        }
+    }
+
+    /**
+     * @param budget bytes the runs of all workers may take together
+     * @param directory where runs are spilled
+     */
+    public ExternalDedupe(int digestLength, long budget, File directory) {
+        this.digestLength = digestLength;
+        this.words = SortedDigests.words(digestLength);
+        long perRun = budget / (2L * ParallelIngest.THREADS) / (8L * words); //halved for the copy made while a run grows
+        this.maxRunEntries = (int) Math.max(MIN_RUN_ENTRIES, Math.min(perRun, (Integer.MAX_VALUE - 8) / words));
+        this.directory = directory;
+        directory.mkdirs();
+    }
+
+    /**
+     * The digests one worker has added since its last spill.
+     */
+    private final class Run {
+        private long[] keys = new long[MIN_RUN_ENTRIES * words];
+        private int count = 0;
+
+        private void add(byte[] hex) {
+            if (count * words == keys.length) {
+                if (count >= maxRunEntries) {
+                    spill();
+                } else {
+                    long[] larger = new long[Math.min(count * 2, maxRunEntries) * words];
+                    System.arraycopy(keys, 0, larger, 0, keys.length);
+                    keys = larger;
+                }
+            }
+            int base = count * words;
+            for (int w = 0; w < words; w++) {
+                keys[base + w] = SortedDigests.decodeWord(hex, w, digestLength);
+            }
+            count++;
+        }
+
+        private void spill() {
+            SortedDigests.sort(keys, count, words);
+            int unique = SortedDigests.unique(keys, count, words);
+            try {
+                File file = File.createTempFile("hypatia-run-", ".bin", directory);
+                file.deleteOnExit();
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))) {
+                    for (int i = 0; i < unique; i++) {
+                        SortedDigests.write(out, keys, i, digestLength);
+                    }
+                }
+                synchronized (spilled) {
+                    spilled.add(new RunFile(file, unique));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            count = 0;
+        }
+    }
+
+    /**
+     * Adds a lowercase hex digest of digestLength * 2 characters. Safe to call from several threads at once.
+     */
+    public void add(byte[] hex) {
+        runs.get().add(hex);
+    }
+
+    public int digestLength() {
+        return digestLength;
+    }
+
+    /**
+     * Spills what is left in every run and merges all of them. Call once, after every worker is done adding.
+     */
+    public RunFile finish() throws IOException {
+        List<Run> remaining = new ArrayList<>();
+        for (Run run : runs.values()) {
+            if (run.count > 0) {
+                remaining.add(run);
+            }
+        }
+        ParallelIngest.forEachPart(remaining.size(), part -> remaining.get(part).spill());
+
+        List<RunFile> pending = new ArrayList<>(spilled);
+        if (pending.isEmpty()) {
+            File empty = File.createTempFile("hypatia-run-", ".bin", directory);
+            empty.deleteOnExit();
+            return new RunFile(empty, 0);
+        }
+        while (pending.size() > 1) {
+            List<RunFile> merged = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i += FAN_IN) {
+                merged.add(merge(pending.subList(i, Math.min(pending.size(), i + FAN_IN))));
+            }
+            pending = merged;
+        }
+        return pending.get(0);
+    }
+
+    /**
+     * Merges sorted runs into one without duplicates, deleting them once done.
+     */
+    private RunFile merge(List<RunFile> inputs) throws IOException {
+        if (inputs.size() == 1) {
+            return inputs.get(0);
+        }
+        File file = File.createTempFile("hypatia-run-", ".bin", directory);
+        file.deleteOnExit();
+        List<Cursor> cursors = new ArrayList<>();
+        PriorityQueue<Cursor> heap = new PriorityQueue<>((a, b) -> SortedDigests.compare(a.key, 0, b.key, 0, words));
+        int count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))) {
+            for (RunFile input : inputs) {
+                Cursor cursor = new Cursor(input);
+                cursors.add(cursor);
+                if (cursor.next()) {
+                    heap.add(cursor);
+                }
+            }
+            long[] last = new long[words];
+            while (!heap.isEmpty()) {
+                Cursor cursor = heap.poll();
+                if (count == 0 || SortedDigests.compare(cursor.key, 0, last, 0, words) != 0) {
+                    SortedDigests.write(out, cursor.key, 0, digestLength);
+                    System.arraycopy(cursor.key, 0, last, 0, words);
+                    count++;
+                }
+                if (cursor.next()) {
+                    heap.add(cursor);
+                }
+            }
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.in.close();
+            }
+        }
+        for (RunFile input : inputs) {
+            Files.deleteIfExists(input.file.toPath());
+        }
+        return new RunFile(file, count);
+    }
+
+    private final class Cursor {
+        private final DataInputStream in;
+        private final long[] key = new long[words];
+        private int remaining;
+
+        private Cursor(RunFile run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), BUFFER_SIZE));
+            this.remaining = run.count;
+        }
+
+        private boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            SortedDigests.read(in, key, 0, digestLength);
+            remaining--;
+            return true;
+        }
+    }
+
+    /**
+     * Writes the digests of run for which keep returns true to a new run, and deletes run.
+     * keep is called in order with the packed words of each digest, in an array that is reused between calls.
+     */
+    public RunFile retain(RunFile run, Predicate<long[]> keep) throws IOException {
+        File file = File.createTempFile("hypatia-run-", ".bin", directory);
+        file.deleteOnExit();
+        int[] count = {0};
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))) {
+            forEachKey(run, digestLength, key -> {
+                if (keep.test(key)) {
+                    try {
+                        SortedDigests.write(out, key, 0, digestLength);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    count[0]++;
+                }
+            });
+        }
+        Files.deleteIfExists(run.file.toPath());
+        return new RunFile(file, count[0]);
+    }
+
+    /**
+     * Calls action with the packed words of every digest in a run, in order.
+     * The array passed is reused between calls and must not be retained.
+     */
+    public static void forEachKey(RunFile run, int digestLength, Consumer<long[]> action) {
+        long[] key = new long[SortedDigests.words(digestLength)];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), BUFFER_SIZE))) {
+            for (int i = 0; i < run.count; i++) {
+                SortedDigests.read(in, key, 0, digestLength);
+                action.accept(key);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Calls action with the lowercase hex of every digest in a run, in order.
+     * The array passed is reused between calls and must not be retained.
+     */
+    public static void forEachHex(RunFile run, int digestLength, Consumer<byte[]> action) {
+        byte[] hex = new byte[digestLength * 2];
+        forEachKey(run, digestLength, key -> {
+            SortedDigests.encode(key, 0, digestLength, hex);
+            action.accept(hex);
+        });
+    }
+
+    /**
+     * Parses a size such as 512m or 2g into bytes.
+     */
+    public static long parseSize(String size) {
+        size = size.trim().toLowerCase(java.util.Locale.ROOT);
+        long unit = 1;
+        char last = size.charAt(size.length() - 1);
+        if (last == 'k' || last == 'm' || last == 'g') {
+            unit = last == 'k' ? 1L << 10 : last == 'm' ? 1L << 20 : 1L << 30;
+            size = size.substring(0, size.length() - 1);
+        }
+        return Long.parseLong(size) * unit;
+    }
+}
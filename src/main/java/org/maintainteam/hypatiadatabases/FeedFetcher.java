@@ -0,0 +1,376 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Downloads every feed of a feed list into the raw directory at once, each on its own virtual thread where the runtime has them.
+ * Every request is conditional on the ETag and Last-Modified of the copy fetched last, so a feed that did not change costs one round trip.
+ * Payloads are kept in a cache named by their SHA-256, computed as they stream in. A payload whose length differs from its
+ * Content-Length, or whose zip does not extract, never replaces the cached one. A feed that fails falls back to its cached copy.
+ * Zip entries are extracted into the raw directory; anything else is copied there as is, as ingestion decompresses .gz itself.
+ * Usage: FeedFetcher &lt;feed list&gt; &lt;raw directory&gt;
+ * The feed list has a line per feed: the file name in the raw directory, the URL, then optionally entry=&lt;name&gt; to take that entry
+ * of a zip rather than its first, and optional if a missing feed should not fail the run. Blank lines and lines from # on are skipped.
+ * Set -Dhypatia.feedCache=&lt;directory&gt; for the cache, ../feed-cache/ of the raw directory by default,
+ * -Dhypatia.feedBaseUrl=&lt;url&gt; to fetch every feed from there instead, by its host and path, such as from a local stand-in server,
+ * and -Dhypatia.fetchThreads=N for the pool used where there are no virtual threads (16 by default).
+ */
+public final class FeedFetcher {
+    private static final String BASE_URL = System.getProperty("hypatia.feedBaseUrl");
+    private static final int FETCH_THREADS = Integer.getInteger("hypatia.fetchThreads", 16);
+    private static final String STATE = "feeds.properties";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File rawDirectory;
+    private final File objects;
+    private final File stateFile;
+    private final Properties state = new Properties();
+    private final HttpClient client;
+
+    private FeedFetcher(File rawDirectory, File cache) throws IOException {
+        this.rawDirectory = rawDirectory;
+        this.objects = new File(cache, "objects");
+        this.stateFile = new File(cache, STATE);
+        Files.createDirectories(objects.toPath());
+        Files.createDirectories(rawDirectory.toPath());
+        if (stateFile.exists()) {
+            try (InputStream in = new FileInputStream(stateFile)) {
+                state.load(in);
+            }
+        }
+        //on the client's own executor: the fetch tasks block in send, so sharing a bounded pool with them
+        //leaves no thread to complete a response once there are as many feeds as threads
+        this.client = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(30))
+                .build();
+    }
+
+    /**
+     * One line of the feed list.
+     */
+    private static final class Feed {
+        private final String name;
+        private final URI uri;
+        private String entry = null;
+        private boolean optional = false;
+
+        private Feed(String name, URI uri) {
+            this.name = name;
+            this.uri = uri;
+        }
+    }
+
+    /**
+     * What became of one feed, printed once every feed is done.
+     */
+    private static final class Result {
+        private String line;
+        private boolean failed = false;
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Usage: FeedFetcher <feed list> <raw directory>");
+            return;
+        }
+        File rawDirectory = new File(args[1]);
+        File cache = new File(System.getProperty("hypatia.feedCache", new File(rawDirectory, "../feed-cache").getPath()));
+        List<Feed> feeds;
+        try {
+            feeds = parse(new File(args[0]));
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+
+        ExecutorService executor = newExecutor();
+        boolean failed = false;
+        try {
+            FeedFetcher fetcher = new FeedFetcher(rawDirectory, cache);
+            System.out.println("Fetching " + feeds.size() + " feeds:");
+            List<Future<Result>> results = new ArrayList<>();
+            for (Feed feed : feeds) {
+                results.add(executor.submit(() -> fetcher.fetch(feed)));
+            }
+            for (int i = 0; i < feeds.size(); i++) {
+                Result result = results.get(i).get();
+                System.out.println("\t" + feeds.get(i).name + ": " + result.line);
+                failed |= result.failed && !feeds.get(i).optional;
+            }
+            fetcher.finish(feeds);
+        } catch (IOException | ExecutionException e) {
+            e.printStackTrace();
+            failed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed = true;
+        } finally {
+            executor.shutdown();
+        }
+        if (failed) {
+            System.out.println("Some feeds could not be fetched");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return an executor that starts a virtual thread per task, looked up by reflection as the build targets Java 17,
+     * or a pool of FETCH_THREADS threads on runtimes without them
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return Executors.newFixedThreadPool(FETCH_THREADS);
+        }
+    }
+
+    private static List<Feed> parse(File list) throws IOException {
+        List<Feed> feeds = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (String line : Files.readAllLines(list.toPath(), StandardCharsets.UTF_8)) {
+            int comment = line.indexOf('#');
+            String[] fields = (comment < 0 ? line : line.substring(0, comment)).trim().split("\\s+");
+            if (fields.length < 2) {
+                continue;
+            }
+            if (fields[0].contains("/") || !names.add(fields[0])) {
+                throw new IllegalArgumentException("Invalid or repeated feed name: " + fields[0]);
+            }
+            Feed feed = new Feed(fields[0], URI.create(fields[1]));
+            for (int f = 2; f < fields.length; f++) {
+                if (fields[f].startsWith("entry=")) {
+                    feed.entry = fields[f].substring("entry=".length());
+                } else if (fields[f].equals("optional")) {
+                    feed.optional = true;
+                } else {
+                    throw new IllegalArgumentException("Unknown option for " + feed.name + ": " + fields[f]);
+                }
+            }
+            feeds.add(feed);
+        }
+        return feeds;
+    }
+
+    private Result fetch(Feed feed) {
+        Result result = new Result();
+        long start = System.nanoTime();
+        String cached;
+        String etag;
+        String lastModified;
+        synchronized (state) {
+            boolean sameUrl = feed.uri.toString().equals(state.getProperty(feed.name + ".url"));
+            cached = sameUrl ? state.getProperty(feed.name + ".sha256") : null;
+            etag = state.getProperty(feed.name + ".etag");
+            lastModified = state.getProperty(feed.name + ".lastModified");
+        }
+        File cachedObject = cached == null ? null : new File(objects, cached);
+        if (cachedObject != null && !cachedObject.exists()) {
+            cachedObject = null;
+        }
+
+        File download = null;
+        try {
+            HttpRequest.Builder request = HttpRequest.newBuilder(resolve(feed.uri)).header("User-Agent", "HypatiaDatabases").GET();
+            if (cachedObject != null && etag != null) {
+                request.header("If-None-Match", etag);
+            }
+            if (cachedObject != null && lastModified != null) {
+                request.header("If-Modified-Since", lastModified);
+            }
+            HttpResponse<InputStream> response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            try (InputStream body = response.body()) {
+                if (response.statusCode() == 304 && cachedObject != null) {
+                    install(feed, cachedObject);
+                    result.line = "not modified, " + cachedObject.length() + " bytes from cache";
+                    return result;
+                }
+                if (response.statusCode() != 200) {
+                    throw new IOException("HTTP " + response.statusCode());
+                }
+                download = File.createTempFile("feed-", ".part", objects);
+                String sha256 = copy(body, download);
+                long expected = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+                if (expected >= 0 && expected != download.length()) {
+                    throw new IOException("truncated, " + download.length() + " of " + expected + " bytes");
+                }
+                File object = new File(objects, sha256);
+                install(feed, download);
+                Files.move(download.toPath(), object.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                synchronized (state) {
+                    state.setProperty(feed.name + ".url", feed.uri.toString());
+                    state.setProperty(feed.name + ".sha256", sha256);
+                    setOrRemove(feed.name + ".etag", response.headers().firstValue("ETag").orElse(null));
+                    setOrRemove(feed.name + ".lastModified", response.headers().firstValue("Last-Modified").orElse(null));
+                }
+                result.line = (sha256.equals(cached) ? "unchanged, " : "") + object.length() + " bytes in "
+                        + String.format("%.1f", (System.nanoTime() - start) / 1e9) + "s, sha256 " + sha256;
+            }
+        } catch (IOException | RuntimeException e) {
+            if (cachedObject != null) {
+                try {
+                    install(feed, cachedObject);
+                    result.line = "failed: " + e + ", using the copy from cache";
+                    return result;
+                } catch (IOException fallback) {
+                    e.addSuppressed(fallback);
+                }
+            }
+            result.line = "failed: " + e;
+            result.failed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.line = "interrupted";
+            result.failed = true;
+        } finally {
+            if (download != null) {
+                download.delete();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return uri, or its host and path under BASE_URL if that is set
+     */
+    private static URI resolve(URI uri) {
+        if (BASE_URL == null) {
+            return uri;
+        }
+        String base = BASE_URL.endsWith("/") ? BASE_URL : BASE_URL + "/";
+        return URI.create(base + uri.getHost() + uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery()));
+    }
+
+    /**
+     * Streams in to file, hashing it on the way.
+     *
+     * @return the lowercase hex SHA-256 of what was written
+     */
+    private static String copy(InputStream in, File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (OutputStream out = new DigestOutputStream(new FileOutputStream(file), digest)) {
+            in.transferTo(out);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Puts the payload in the raw directory under the name of feed: the chosen entry if it is a zip, otherwise the payload itself.
+     * Always a copy, so a later step editing raw files in place cannot corrupt the cache. Written next to it first,
+     * so a failure leaves the previous file.
+     */
+    private void install(Feed feed, File payload) throws IOException {
+        File target = new File(rawDirectory, feed.name);
+        File temporary = new File(rawDirectory, "." + feed.name + ".part");
+        Files.deleteIfExists(temporary.toPath());
+        try {
+            if (isZip(payload)) {
+                extract(payload, feed.entry, temporary);
+            } else {
+                Files.copy(payload.toPath(), temporary.toPath());
+            }
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+
+    private static boolean isZip(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] magic = new byte[4];
+            return in.readNBytes(magic, 0, 4) == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4;
+        }
+    }
+
+    /**
+     * Writes the named entry of a zip, or its first file if name is null, to target. The zip is read to the end,
+     * so a corrupt or truncated archive fails here rather than in ingestion.
+     */
+    private static void extract(File zip, String name, File target) throws IOException {
+        boolean found = false;
+        try (ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(zip), BUFFER_SIZE))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                if (!found && !entry.isDirectory() && (name == null || entry.getName().equals(name))) {
+                    try (OutputStream out = new FileOutputStream(target)) {
+                        in.transferTo(out);
+                    }
+                    found = true;
+                }
+            }
+        }
+        if (!found) {
+            throw new IOException(name == null ? "empty zip" : "no entry " + name + " in zip");
+        }
+    }
+
+    private void setOrRemove(String key, String value) {
+        if (value == null) {
+            state.remove(key);
+        } else {
+            state.setProperty(key, value);
+        }
+    }
+
+    /**
+     * Saves the validators and drops every cached payload that no feed of the list refers to any more.
+     */
+    private void finish(List<Feed> feeds) throws IOException {
+        Set<String> referenced = new HashSet<>();
+        for (Feed feed : feeds) {
+            String sha256 = state.getProperty(feed.name + ".sha256");
+            if (sha256 != null) {
+                referenced.add(sha256);
+            }
+        }
+        File[] cached = objects.listFiles();
+        if (cached != null) {
+            for (File object : cached) {
+                if (!referenced.contains(object.getName())) {
+                    Files.deleteIfExists(object.toPath());
+                }
+            }
+        }
+        File temporary = new File(stateFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temporary)) {
+            state.store(out, "Validators and cached payload of each feed");
+        }
+        Files.move(temporary.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,81 @@
+package org.maintainteam.hypatiadatabases;
+
+/**
+ * Counters and report lines for a single database file, filled by whichever worker parses it.
+ */
+public final class FileReport {
+    public int amtLinesValid = 0;
+    public int amtLinesInvalid = 0;
+    public int amtLinesExcluded = 0;
+    //valid hashes the set or filter they went into already held, for AppResize that is the set of the worker that parsed them
+    public int amtLinesDuplicate = 0;
+
+    public int amtSignaturesReadMD5 = 0;
+    public int amtSignaturesReadSHA1 = 0;
+    public int amtSignaturesReadSHA256 = 0;
+
+    public int amtSignaturesAddedMD5 = 0;
+    public int amtSignaturesDedupedMD5 = 0;
+    public int amtSignaturesAddedSHA1 = 0;
+    public int amtSignaturesAddedSHA256 = 0;
+
+    //size of the file on disk and the time it took to parse or replay it, set once for the whole file
+    public long amtBytes = 0;
+    public long nanos = 0;
+
+    public Exception error = null;
+
+    //Every hash the file lists, kept until Pipeline adds them to its sets in file order
+    public DigestSets hashes = null;
+
+    private final StringBuilder log = new StringBuilder();
+
+    public void println(String line) {
+        log.append(line).append(System.lineSeparator());
+    }
+
+    /**
+     * Adds the counts and lines of a later part of the same file.
+     */
+    public void add(FileReport other) {
+        amtLinesValid += other.amtLinesValid;
+        amtLinesInvalid += other.amtLinesInvalid;
+        amtLinesExcluded += other.amtLinesExcluded;
+        amtLinesDuplicate += other.amtLinesDuplicate;
+        amtSignaturesReadMD5 += other.amtSignaturesReadMD5;
+        amtSignaturesReadSHA1 += other.amtSignaturesReadSHA1;
+        amtSignaturesReadSHA256 += other.amtSignaturesReadSHA256;
+        amtSignaturesAddedMD5 += other.amtSignaturesAddedMD5;
+        amtSignaturesDedupedMD5 += other.amtSignaturesDedupedMD5;
+        amtSignaturesAddedSHA1 += other.amtSignaturesAddedSHA1;
+        amtSignaturesAddedSHA256 += other.amtSignaturesAddedSHA256;
+        log.append(other.log);
+        if (other.hashes != null) {
+            if (hashes == null) {
+                hashes = other.hashes;
+            } else {
+                hashes.addAll(other.hashes);
+            }
+        }
+        if (error == null) {
+            error = other.error;
+        }
+    }
+
+    /**
+     * @return the buffered lines, as printLog prints them
+     */
+    public String log() {
+        return log.toString();
+    }
+
+    /**
+     * Prints the buffered lines, then the stack trace of any failure.
+     */
+    public void printLog() {
+        System.out.print(log);
+        if (error != null) {
+            error.printStackTrace();
+        }
+    }
+}
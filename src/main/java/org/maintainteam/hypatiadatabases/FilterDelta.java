@@ -0,0 +1,149 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Delta between two generations of a filter file of the same length, so clients only download the bits that changed.
+ * The file holds the SHA-256 of the base it applies to and of the file it produces, followed by the position of every
+ * flipped bit as the varint gap since the previous one. Filters whose geometry changed cannot be patched, clients then
+ * download the full file.
+ */
+public final class FilterDelta {
+    static final int MAGIC = 0x48594244; //"HYBD"
+    static final int VERSION = 1;
+    private static final int DIGEST_LENGTH = 32;
+
+    private FilterDelta() {
+    }
+
+    /**
+     * @return the number of bits that differ between base and target, or -1 if their lengths differ and no delta was written
+     */
+    public static long write(File base, File target, File delta) throws IOException {
+        byte[] from = Files.readAllBytes(base.toPath());
+        byte[] to = Files.readAllBytes(target.toPath());
+        if (from.length != to.length) {
+            Files.deleteIfExists(delta.toPath());
+            return -1;
+        }
+        long amtChanged = 0;
+        for (int i = 0; i < to.length; i++) {
+            amtChanged += Integer.bitCount((from[i] ^ to[i]) & 0xff);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(delta), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(to.length);
+            out.write(sha256(from));
+            out.write(sha256(to));
+            out.writeLong(amtChanged);
+            long next = 0;
+            for (int i = 0; i < to.length; i++) {
+                int diff = (from[i] ^ to[i]) & 0xff;
+                while (diff != 0) {
+                    long bit = (long) i * Byte.SIZE + Integer.numberOfTrailingZeros(diff);
+                    writeVarLong(out, bit - next);
+                    next = bit + 1;
+                    diff &= diff - 1;
+                }
+            }
+        }
+        return amtChanged;
+    }
+
+    /**
+     * Reconstructs the target of a delta from its base.
+     *
+     * @throws IOException if the delta was made for another base, or does not produce the file it was made for
+     */
+    public static byte[] apply(byte[] base, InputStream delta) throws IOException {
+        DataInputStream in = new DataInputStream(delta);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a filter delta");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported filter delta version " + version);
+        }
+        long length = in.readLong();
+        byte[] baseDigest = new byte[DIGEST_LENGTH];
+        byte[] targetDigest = new byte[DIGEST_LENGTH];
+        in.readFully(baseDigest);
+        in.readFully(targetDigest);
+        if (base.length != length || !MessageDigest.isEqual(sha256(base), baseDigest)) {
+            throw new IOException("Filter delta was made for a different base");
+        }
+
+        byte[] result = base.clone();
+        long amtChanged = in.readLong();
+        long next = 0;
+        for (long i = 0; i < amtChanged; i++) {
+            long bit = next + readVarLong(in);
+            if (bit >= length * Byte.SIZE) {
+                throw new IOException("Filter delta changes bit " + bit + " past the end");
+            }
+            result[(int) (bit >>> 3)] ^= (byte) (1 << (bit & 7));
+            next = bit + 1;
+        }
+        if (!MessageDigest.isEqual(sha256(result), targetDigest)) {
+            throw new IOException("Filter delta did not produce the expected file");
+        }
+        return result;
+    }
+
+    public static void apply(File base, File delta, File target) throws IOException {
+        byte[] result;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(delta), 1 << 16)) {
+            result = apply(Files.readAllBytes(base.toPath()), in);
+        }
+        Files.write(target.toPath(), result);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in filter delta");
+    }
+
+    static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Usage: FilterDelta &lt;base&gt; &lt;delta&gt; &lt;output&gt;
+     */
+    public static void main(String[] args) throws IOException {
+        apply(new File(args[0]), new File(args[1]), new File(args[2]));
+        System.out.println("Applied " + args[1] + " to " + args[0] + ", wrote " + args[2]);
+    }
+}
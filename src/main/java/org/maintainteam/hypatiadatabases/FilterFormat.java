@@ -0,0 +1,351 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * The filter files Pipeline can write for a complete key set, named by their Target.
+ * Select them with -Dhypatia.filters=bloom,blocked,fuse; all of them are written by default.
+ */
+public enum FilterFormat {
+    /**
+     * Guava's BloomFilter format, what clients load today.
+     * Keeps the geometry of the previous generation where it can, so FilterDelta can patch one into the other.
+     */
+    BLOOM("bloom", true) {
+        @Override
+        Builder builder(int keys, long capacity, double fpp, File previous) throws IOException {
+            ConcurrentBloomFilter filter = previous == null || !previous.exists() ? ConcurrentBloomFilter.create(Math.max(capacity, 1), fpp)
+                    : ConcurrentBloomFilter.create(capacity, fpp, previous);
+            return new Builder() {
+                @Override
+                public void put(byte[] key) {
+                    filter.put(key);
+                }
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    filter.writeTo(out);
+                }
+
+                @Override
+                public String geometry() {
+                    return filter.bitSize() + " bits, " + filter.numHashFunctions() + " hash functions";
+                }
+            };
+        }
+
+        @Override
+        Reader read(InputStream in) throws IOException {
+            ConcurrentBloomFilter filter = ConcurrentBloomFilter.readFrom(in);
+            return Reader.of(filter::mightContain, filter.expectedFpp());
+        }
+    },
+    /**
+     * BlockedBloomFilter, one cache line per lookup.
+     */
+    BLOCKED("blocked", true) {
+        @Override
+        Builder builder(int keys, long capacity, double fpp, File previous) {
+            BlockedBloomFilter filter = BlockedBloomFilter.create(capacity, fpp);
+            return new Builder() {
+                @Override
+                public void put(byte[] key) {
+                    filter.put(key);
+                }
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    filter.writeTo(out);
+                }
+
+                @Override
+                public String geometry() {
+                    return filter.bitSize() + " bits in " + filter.blockCount() + " blocks";
+                }
+            };
+        }
+
+        @Override
+        Reader read(InputStream in) throws IOException {
+            BlockedBloomFilterReader filter = BlockedBloomFilterReader.readFrom(in);
+            return Reader.of(filter::mightContain, filter.expectedFpp());
+        }
+    },
+    /**
+     * BinaryFuseFilter, the smallest of the three for the same false positive rate. Always built for exactly its keys.
+     */
+    FUSE("fuse", false) {
+        @Override
+        Builder builder(int keys, long capacity, double fpp, File previous) {
+            long[] hashes = new long[keys];
+            AtomicInteger count = new AtomicInteger();
+            return new Builder() {
+                @Override
+                public void put(byte[] key) {
+                    hashes[count.getAndIncrement()] = BinaryFuseFilter.key(key);
+                }
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    BinaryFuseFilter.build(hashes, count.get(), BinaryFuseFilter.fingerprintBits(fpp)).writeTo(out);
+                }
+            };
+        }
+
+        @Override
+        Reader read(InputStream in) throws IOException {
+            BinaryFuseFilter filter = BinaryFuseFilter.readFrom(in);
+            return Reader.of(filter::mightContain, filter.expectedFpp());
+        }
+    },
+    /**
+     * The bits of the bloom format in MappedBloomFilter's layout, for clients that map the file instead of loading it.
+     * Sized like the bloom format, but always from scratch.
+     */
+    MAPPED("mapped", false) {
+        @Override
+        Builder builder(int keys, long capacity, double fpp, File previous) {
+            ConcurrentBloomFilter filter = ConcurrentBloomFilter.create(Math.max(capacity, 1), fpp);
+            return new Builder() {
+                @Override
+                public void put(byte[] key) {
+                    filter.put(key);
+                }
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    MappedBloomFilter.write(filter, keys, out);
+                }
+            };
+        }
+
+        @Override
+        Reader read(InputStream in) throws IOException {
+            MappedBloomFilter filter = MappedBloomFilter.readFrom(in);
+            return Reader.of(filter::mightContain, filter.expectedFpp());
+        }
+
+        @Override
+        public Reader read(File file) throws IOException {
+            MappedBloomFilter filter = MappedBloomFilter.map(file);
+            return Reader.of(filter::mightContain, filter.expectedFpp());
+        }
+    };
+
+    public static final String DEFAULT_FORMATS = "bloom,blocked,fuse,mapped";
+
+    public final String suffix;
+    //whether a builder can be filled before the keys are counted, as its size only depends on the capacity
+    public final boolean streamable;
+
+    FilterFormat(String suffix, boolean streamable) {
+        this.suffix = suffix;
+        this.streamable = streamable;
+    }
+
+    /**
+     * A filter as a client loads it: its mightContain, and the false positive rate it should show given how full it is.
+     */
+    public interface Reader extends Predicate<byte[]> {
+        double expectedFpp();
+
+        static Reader of(Predicate<byte[]> mightContain, double expectedFpp) {
+            return new Reader() {
+                @Override
+                public boolean test(byte[] key) {
+                    return mightContain.test(key);
+                }
+
+                @Override
+                public double expectedFpp() {
+                    return expectedFpp;
+                }
+            };
+        }
+    }
+
+    /**
+     * A filter being filled, from several threads at once if need be, and then written.
+     */
+    public interface Builder {
+        void put(byte[] key);
+
+        /**
+         * Writes the filter. The stream is flushed, not closed.
+         */
+        void writeTo(OutputStream out) throws IOException;
+
+        /**
+         * @return how the filter is laid out, such as its bits and hash functions, or an empty string
+         */
+        default String geometry() {
+            return "";
+        }
+    }
+
+    /**
+     * The complete key set of one filter.
+     */
+    public interface Keys {
+        int size();
+
+        /**
+         * Calls action with the ASCII bytes of every key, possibly from several threads at once.
+         * The array passed may be reused between calls and must not be retained.
+         */
+        void forEach(Consumer<byte[]> action);
+
+        /**
+         * The lowercase hex of every digest in hashes, walked in parallel.
+         */
+        static Keys of(PackedHashSet hashes) {
+            return new Keys() {
+                @Override
+                public int size() {
+                    return hashes.size();
+                }
+
+                @Override
+                public void forEach(Consumer<byte[]> action) {
+                    int parts = ParallelIngest.THREADS * 4;
+                    ParallelIngest.forEachPart(parts, part -> hashes.forEachHex(part, parts, action));
+                }
+            };
+        }
+
+        /**
+         * The lowercase hex of the first count packed digests of keys, walked in parallel.
+         */
+        static Keys of(long[] keys, int count, int digestLength) {
+            return new Keys() {
+                @Override
+                public int size() {
+                    return count;
+                }
+
+                @Override
+                public void forEach(Consumer<byte[]> action) {
+                    int parts = Math.max(1, Math.min(ParallelIngest.THREADS * 4, count / 1024));
+                    ParallelIngest.forEachPart(parts, part -> {
+                        byte[] hex = new byte[digestLength * 2];
+                        for (int i = (int) ((long) count * part / parts); i < (int) ((long) count * (part + 1) / parts); i++) {
+                            SortedDigests.encode(keys, i, digestLength, hex);
+                            action.accept(hex);
+                        }
+                    });
+                }
+            };
+        }
+
+        /**
+         * The lowercase hex of every digest in a run of ExternalDedupe, streamed from disk in order.
+         */
+        static Keys of(ExternalDedupe.RunFile run, int digestLength) {
+            return new Keys() {
+                @Override
+                public int size() {
+                    return run.count;
+                }
+
+                @Override
+                public void forEach(Consumer<byte[]> action) {
+                    ExternalDedupe.forEachHex(run, digestLength, action);
+                }
+            };
+        }
+
+        static Keys of(Collection<String> values) {
+            return new Keys() {
+                @Override
+                public int size() {
+                    return values.size();
+                }
+
+                @Override
+                public void forEach(Consumer<byte[]> action) {
+                    for (String value : values) {
+                        action.accept(value.getBytes(StandardCharsets.US_ASCII));
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Starts a filter sized for capacity keys at fpp.
+     *
+     * @param keys the exact number of keys that will be put
+     * @param previous the file of the generation clients have now, which may not exist, or null to size the filter from scratch
+     */
+    abstract Builder builder(int keys, long capacity, double fpp, File previous) throws IOException;
+
+    /**
+     * Builds a filter holding every key, sized for capacity keys at fpp, and writes it. The stream is flushed, not closed.
+     *
+     * @param previous the file of the generation clients have now, which may not exist, or null to size the filter from scratch
+     */
+    void write(Keys keys, long capacity, double fpp, File previous, OutputStream out) throws IOException {
+        Builder builder = builder(keys.size(), capacity, fpp, previous);
+        keys.forEach(builder::put);
+        builder.writeTo(out);
+    }
+
+    /**
+     * Reads a filter written by write, as a client would.
+     *
+     * @return its mightContain
+     */
+    abstract Reader read(InputStream in) throws IOException;
+
+    public void write(Keys keys, long capacity, double fpp, File previous, File file) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            write(keys, capacity, fpp, previous, out);
+        }
+    }
+
+    public Reader read(File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * @param formats comma separated suffixes, such as bloom,fuse
+     */
+    public static List<FilterFormat> parse(String formats) {
+        List<FilterFormat> selected = new ArrayList<>();
+        for (String name : formats.split(",")) {
+            name = name.trim().toLowerCase(Locale.ROOT);
+            if (name.isEmpty()) {
+                continue;
+            }
+            FilterFormat format = null;
+            for (FilterFormat candidate : values()) {
+                if (candidate.suffix.equals(name)) {
+                    format = candidate;
+                }
+            }
+            if (format == null) {
+                throw new IllegalArgumentException("Unknown filter format: " + name);
+            }
+            if (!selected.contains(format)) {
+                selected.add(format);
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,194 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decompresses a .gz database on its own thread so that inflating and parsing overlap.
+ * The inflater fills large reusable buffers, each cut at its last newline so any parser can take any buffer,
+ * and passes them through a bounded queue; when every buffer is in use it waits for a parser to hand one back.
+ * The calling thread parses, joined by hypatia.gzipParsers - 1 extra threads.
+ */
+public final class GzipPipeline {
+    public static final int BUFFER_SIZE = Math.max(1 << 16, Integer.getInteger("hypatia.gzipBufferSize", 4 << 20));
+    public static final int PARSERS = Math.max(1, Integer.getInteger("hypatia.gzipParsers", 1));
+
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+    private static final class Block {
+        private final int sequence;
+        private final byte[] data;
+        private final int length;
+
+        private Block(int sequence, byte[] data, int length) {
+            this.sequence = sequence;
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private static final Block END = new Block(-1, new byte[0], 0);
+
+    private final File database;
+    private final HashLineParser.Format format;
+    private final Function<FileReport, HashLineParser.Sink> sinkFactory;
+
+    private final BlockingQueue<byte[]> free;
+    private final BlockingQueue<Block> filled;
+    private final Map<Integer, FileReport> parts = new ConcurrentSkipListMap<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private GzipPipeline(File database, HashLineParser.Format format, Function<FileReport, HashLineParser.Sink> sinkFactory) {
+        this.database = database;
+        this.format = format;
+        this.sinkFactory = sinkFactory;
+        int buffers = PARSERS + 2;
+        this.free = new ArrayBlockingQueue<>(buffers);
+        this.filled = new ArrayBlockingQueue<>(buffers + 1);
+        for (int i = 0; i < buffers; i++) {
+            free.add(new byte[BUFFER_SIZE]);
+        }
+    }
+
+    /**
+     * Parses every line of a gzip compressed database, merging the reports of all buffers in file order.
+     */
+    public static void read(File database, HashLineParser.Format format, Function<FileReport, HashLineParser.Sink> sinkFactory, FileReport result) throws IOException {
+        new GzipPipeline(database, format, sinkFactory).run(result);
+    }
+
+    private void run(FileReport result) throws IOException {
+        Thread inflater = new Thread(this::inflate, "gunzip-" + database.getName());
+        inflater.setDaemon(true);
+        inflater.start();
+
+        List<Thread> parsers = new ArrayList<>();
+        for (int i = 1; i < PARSERS; i++) {
+            Thread parser = new Thread(this::parse, "parse-" + database.getName() + "-" + i);
+            parser.setDaemon(true);
+            parser.start();
+            parsers.add(parser);
+        }
+        parse();
+        try {
+            for (Thread parser : parsers) {
+                parser.join();
+            }
+            inflater.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, e);
+            inflater.interrupt();
+        }
+
+        for (FileReport part : parts.values()) {
+            result.add(part);
+        }
+        Throwable cause = failure.get();
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause != null) {
+            throw new IOException("Failed to process " + database.getName(), cause);
+        }
+    }
+
+    private void inflate() {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(database), INFLATE_BUFFER_SIZE)) {
+            byte[] carry = new byte[0];
+            int sequence = 0;
+            boolean eof = false;
+            while (!eof && failure.get() == null) {
+                byte[] buffer = free.take();
+                if (carry.length >= buffer.length) { //a single line longer than a whole buffer
+                    buffer = new byte[carry.length * 2];
+                }
+                System.arraycopy(carry, 0, buffer, 0, carry.length);
+                int length = carry.length;
+                while (length < buffer.length) {
+                    int read = in.read(buffer, length, buffer.length - length);
+                    if (read == -1) {
+                        eof = true;
+                        break;
+                    }
+                    length += read;
+                }
+
+                int cut = length;
+                if (!eof) {
+                    while (cut > 0 && buffer[cut - 1] != '\n') {
+                        cut--;
+                    }
+                    if (cut == 0) { //no newline at all, keep the whole buffer as the carry and grow next time
+                        carry = new byte[length];
+                        System.arraycopy(buffer, 0, carry, 0, length);
+                        free.put(buffer);
+                        continue;
+                    }
+                }
+                carry = new byte[length - cut];
+                System.arraycopy(buffer, cut, carry, 0, carry.length);
+                filled.put(new Block(sequence++, buffer, cut));
+            }
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        } finally {
+            try {
+                filled.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void parse() {
+        try {
+            while (true) {
+                Block block = filled.take();
+                if (block == END) {
+                    filled.put(END); //let the other parsers see it too
+                    return;
+                }
+                if (failure.get() == null) {
+                    FileReport part = new FileReport();
+                    new HashLineParser(format, sinkFactory.apply(part)).parse(ByteBuffer.wrap(block.data, 0, block.length), true);
+                    parts.put(block.sequence, part);
+                }
+                if (block.data.length == BUFFER_SIZE) {
+                    free.put(block.data);
+                } else {
+                    free.put(new byte[BUFFER_SIZE]); //replace a buffer that was grown for a long line
+                }
+            }
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+            drain();
+        }
+    }
+
+    /**
+     * Keeps returning buffers after a parser failed so the inflater can notice the failure and stop.
+     */
+    private void drain() {
+        try {
+            Block block;
+            while ((block = filled.take()) != END) {
+                free.offer(block.data.length == BUFFER_SIZE ? block.data : new byte[BUFFER_SIZE]);
+            }
+            filled.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Extracts hex hashes from signature lists by scanning raw bytes.
+ * Each line is trimmed, cut at the format's field separator, checked for hex and length and lowercased
+ * into a reusable array, so no String is created for a valid hash.
+ */
+public final class HashLineParser {
+
+    public enum Format {
+        CLAMAV(':'), //.hdb/.hsb format: hash:size:name:version
+        LOKI(';'), //.loki format: hash;comment
+        PLAIN((byte) 0), //one signature per line
+        BEST_EFFORT((byte) 0);
+
+        private final byte separator;
+
+        Format(char separator) {
+            this((byte) separator);
+        }
+
+        Format(byte separator) {
+            this.separator = separator;
+        }
+
+        /**
+         * @return the format for a database file name, also for a gzip compressed one, or null if it is not a supported signature list
+         */
+        public static Format of(String fileName) {
+            if (fileName.endsWith(".gz")) {
+                fileName = fileName.substring(0, fileName.length() - 3);
+            }
+            if (fileName.endsWith(".hdb") || fileName.endsWith(".hsb") || fileName.endsWith(".hdu") || fileName.endsWith(".hsu")) {
+                return CLAMAV;
+            } else if (fileName.endsWith(".md5") || fileName.endsWith(".sha1") || fileName.endsWith(".sha256") || fileName.endsWith(".hashes")) {
+                return PLAIN;
+            } else if (fileName.endsWith(".loki")) {
+                return LOKI;
+            } else if (fileName.endsWith(".txt")) {
+                return BEST_EFFORT;
+            }
+            return null;
+        }
+    }
+
+    public enum Rejection {
+        SHORT,
+        NOT_HEXADECIMAL,
+        INVALID_LENGTH
+    }
+
+    public interface Sink {
+        /**
+         * @param hex lowercase hex of length 32, 40 or 64, reused after this call returns
+         */
+        void hash(byte[] hex);
+
+        /**
+         * Called for a non-comment field that is not a hash, [start, end) being its position in line.
+         */
+        void rejected(Rejection reason, ByteBuffer line, int start, int end);
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Format format;
+    private final Sink sink;
+    private final byte[] md5 = new byte[32];
+    private final byte[] sha1 = new byte[40];
+    private final byte[] sha256 = new byte[64];
+
+    public HashLineParser(Format format, Sink sink) {
+        this.format = format;
+        this.sink = sink;
+    }
+
+    /**
+     * Parses every line in the stream, which is not closed.
+     */
+    public void parse(InputStream in) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        int read;
+        while ((read = in.read(buffer.array(), buffer.position(), buffer.remaining())) != -1) {
+            buffer.position(buffer.position() + read);
+            buffer.flip();
+            parse(buffer, false);
+            buffer.compact();
+            if (!buffer.hasRemaining()) { //single line longer than the buffer
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+        buffer.flip();
+        parse(buffer, true);
+    }
+
+    /**
+     * Parses the lines between the buffer's position and limit.
+     * Unless endOfInput is set a trailing line without a newline is left unconsumed, with the position at its start.
+     */
+    public void parse(ByteBuffer buffer, boolean endOfInput) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        while (position < limit) {
+            int newline = position;
+            while (newline < limit && buffer.get(newline) != '\n') {
+                newline++;
+            }
+            if (newline == limit && !endOfInput) {
+                break;
+            }
+            parseLine(buffer, position, newline);
+            position = newline + 1;
+        }
+        buffer.position(Math.min(position, limit));
+    }
+
+    private void parseLine(ByteBuffer buffer, int start, int end) {
+        while (start < end && isWhitespace(buffer.get(start))) {
+            start++;
+        }
+        if (start == end || buffer.get(start) == '#') {
+            return;
+        }
+        if (format.separator != 0) {
+            for (int i = start; i < end; i++) {
+                if (buffer.get(i) == format.separator) {
+                    end = i;
+                    break;
+                }
+            }
+        }
+        while (end > start && isWhitespace(buffer.get(end - 1))) {
+            end--;
+        }
+
+        int length = end - start;
+        if (length < 4) {
+            sink.rejected(Rejection.SHORT, buffer, start, end);
+            return;
+        }
+        byte[] hex = length == 32 ? md5 : length == 40 ? sha1 : length == 64 ? sha256 : null;
+        for (int i = 0; i < length; i++) {
+            int b = buffer.get(start + i);
+            if (b >= 'A' && b <= 'F') {
+                b |= 0x20;
+            } else if (!(b >= '0' && b <= '9') && !(b >= 'a' && b <= 'f')) {
+                sink.rejected(Rejection.NOT_HEXADECIMAL, buffer, start, end);
+                return;
+            }
+            if (hex != null) {
+                hex[i] = (byte) b;
+            }
+        }
+        if (hex == null) {
+            sink.rejected(Rejection.INVALID_LENGTH, buffer, start, end);
+            return;
+        }
+        sink.hash(hex);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return (b & 0xFF) <= ' '; //same set String.trim() removes
+    }
+
+    /**
+     * @return the lowercased text of [start, end) in buffer, for reporting rejected fields
+     */
+    public static String text(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8).toLowerCase();
+    }
+}
@@ -0,0 +1,230 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * The generation report as HTML, written as the run goes instead of rewriting the text report once it is done.
+ * Set -Dhypatia.report=&lt;file&gt; to write it, and -Dhypatia.reportTemplate=&lt;file&gt;, such as static/template.html,
+ * to start it with that page, with [DATE] replaced by the time of the run; without a template it is a fragment to place under one.
+ * Files that contributed no hash and failed in no way are left out, and every md5, sha1 or sha256 written links to VirusTotal.
+ */
+public final class HtmlReport implements AutoCloseable {
+    public static final String TARGET = System.getProperty("hypatia.report");
+    private static final String TEMPLATE = System.getProperty("hypatia.reportTemplate");
+    private static final String VIRUSTOTAL = "https://www.virustotal.com/gui/file/";
+
+    //null when no report is written, or once writing it failed
+    private Writer out;
+    private boolean inTable = false;
+    private int amtFilesListed = 0;
+    private int amtFilesSkipped = 0;
+
+    public HtmlReport() {
+        if (TARGET == null) {
+            return;
+        }
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(TARGET), StandardCharsets.UTF_8), 1 << 16);
+            if (TEMPLATE != null) {
+                String date = new Date().toString();
+                try (BufferedReader template = new BufferedReader(new InputStreamReader(new FileInputStream(TEMPLATE), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = template.readLine()) != null) {
+                        out.write(line.replace("[DATE]", date));
+                        out.write('\n');
+                    }
+                }
+            }
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * Starts a section, ending the table before it.
+     */
+    public void heading(String title) {
+        endTable();
+        write("<h3>" + escape(title) + "</h3>\n");
+    }
+
+    /**
+     * Starts a table with these column names.
+     */
+    public void header(String... columns) {
+        endTable();
+        StringBuilder row = new StringBuilder("<table>\n\t<tr>");
+        for (String column : columns) {
+            row.append("<th>").append(escape(column)).append("</th>");
+        }
+        write(row.append("</tr>\n").toString());
+        inTable = true;
+    }
+
+    /**
+     * Adds a row to the current table, linking every hash in the cells.
+     */
+    public void row(Object... cells) {
+        if (!inTable) {
+            write("<table>\n");
+            inTable = true;
+        }
+        StringBuilder row = new StringBuilder("\t<tr>");
+        for (Object cell : cells) {
+            row.append("<td>");
+            linkify(String.valueOf(cell), row);
+            row.append("</td>");
+        }
+        write(row.append("</tr>\n").toString());
+    }
+
+    /**
+     * Adds a paragraph, linking every hash in it.
+     */
+    public void line(String text) {
+        endTable();
+        StringBuilder line = new StringBuilder("<p>");
+        linkify(text, line);
+        write(line.append("</p>\n").toString());
+    }
+
+    /**
+     * Adds a row for what a database file contributed, unless it contributed nothing and failed in no way.
+     * The columns are those of the table the signatures stage starts.
+     */
+    public void file(File database, FileReport result) {
+        int amtAdded = result.amtSignaturesAddedMD5 + result.amtSignaturesAddedSHA1 + result.amtSignaturesAddedSHA256;
+        if (amtAdded == 0 && result.amtLinesInvalid == 0 && result.error == null) {
+            amtFilesSkipped++;
+            return;
+        }
+        amtFilesListed++;
+        String notes = result.log().trim().replaceAll("\\s*\\R\\s*", "; ");
+        if (result.error != null) {
+            notes = (notes.isEmpty() ? "" : notes + "; ") + result.error;
+        }
+        row(database.getName(), result.amtSignaturesAddedMD5, result.amtSignaturesAddedSHA1, result.amtSignaturesAddedSHA256,
+                result.amtLinesDuplicate, result.amtLinesInvalid, result.amtLinesExcluded, notes);
+    }
+
+    /**
+     * @return the number of files left out for contributing nothing
+     */
+    public int amtFilesSkipped() {
+        return amtFilesSkipped;
+    }
+
+    public int amtFilesListed() {
+        return amtFilesListed;
+    }
+
+    @Override
+    public void close() {
+        if (out == null) {
+            return;
+        }
+        endTable();
+        try {
+            out.close();
+            System.out.println("Wrote report to " + TARGET);
+        } catch (IOException e) {
+            failed(e);
+        }
+        out = null;
+    }
+
+    private void endTable() {
+        if (inTable) {
+            write("</table>\n");
+            inTable = false;
+        }
+    }
+
+    private void write(String html) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.write(html);
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private void failed(IOException e) {
+        e.printStackTrace();
+        out = null;
+    }
+
+    /**
+     * Appends text escaped to html, with every run of exactly 32, 40 or 64 hex characters that stands alone
+     * linked to its VirusTotal page. A single scan, without regular expressions.
+     */
+    static void linkify(String text, StringBuilder html) {
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (!isHex(c) || (i > 0 && Character.isLetterOrDigit(text.charAt(i - 1)))) {
+                escape(c, html);
+                i++;
+                continue;
+            }
+            int end = i;
+            while (end < length && isHex(text.charAt(end))) {
+                end++;
+            }
+            int run = end - i;
+            if ((run == 32 || run == 40 || run == 64) && (end == length || !Character.isLetterOrDigit(text.charAt(end)))) {
+                String hash = text.substring(i, end);
+                html.append("<a href=\"").append(VIRUSTOTAL).append(hash.toLowerCase(Locale.ROOT))
+                        .append("\" target=\"_blank\" rel=\"nofollow noopener noreferrer\">").append(hash).append("</a>");
+            } else {
+                html.append(text, i, end);
+            }
+            i = end;
+        }
+    }
+
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    private static String escape(String text) {
+        StringBuilder html = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            escape(text.charAt(i), html);
+        }
+        return html.toString();
+    }
+
+    private static void escape(char c, StringBuilder html) {
+        switch (c) {
+            case '&':
+                html.append("&amp;");
+                break;
+            case '<':
+                html.append("&lt;");
+                break;
+            case '>':
+                html.append("&gt;");
+                break;
+            case '"':
+                html.append("&quot;");
+                break;
+            default:
+                html.append(c);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The bits of a ConcurrentBloomFilter in a layout clients query in place: a 64-byte header, then the words as little-endian longs,
+ * so map hands a LongBuffer over the page cache to lookups instead of copying the filter onto the heap first.
+ * Bit positions are those of Guava's MURMUR128_MITZ_64 strategy, so a key matches here exactly when it matches the bloom format.
+ * Header: magic, version, strategy, hash function count as ints, then the word count and the number of keys put as longs.
+ */
+public final class MappedBloomFilter {
+    static final int MAGIC = 0x4859424D; //"HYBM"
+    static final int VERSION = 1;
+    static final int STRATEGY_MURMUR128_MITZ_64 = 1;
+    //a whole cache line, so the words start aligned however the file is mapped
+    static final int HEADER_SIZE = 64;
+
+    private final LongBuffer data;
+    private final long bitSize;
+    private final int numHashFunctions;
+    private final long entries;
+
+    private MappedBloomFilter(LongBuffer data, int numHashFunctions, long entries) {
+        this.data = data;
+        this.bitSize = (long) data.capacity() * Long.SIZE;
+        this.numHashFunctions = numHashFunctions;
+        this.entries = entries;
+    }
+
+    /**
+     * @param entries the number of keys put into filter
+     */
+    public static void write(ConcurrentBloomFilter filter, long entries, OutputStream out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(STRATEGY_MURMUR128_MITZ_64).putInt(filter.numHashFunctions());
+        buffer.putLong(filter.wordCount()).putLong(entries);
+        buffer.position(HEADER_SIZE);
+        for (int i = 0; i < filter.wordCount(); i++) {
+            if (!buffer.hasRemaining()) {
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            buffer.putLong(filter.word(i));
+        }
+        out.write(buffer.array(), 0, buffer.position());
+        out.flush();
+    }
+
+    /**
+     * Maps the file read-only. Nothing is copied, so opening costs the same whatever the filter's size,
+     * and processes mapping the same file share its pages.
+     */
+    public static MappedBloomFilter map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Mapped bloom filter too large to map: " + file);
+            }
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            long words = checkHeader(mapped);
+            if (channel.size() < HEADER_SIZE + words * Long.BYTES) {
+                throw new IOException("Truncated mapped bloom filter: " + file);
+            }
+            ByteBuffer data = mapped.position(HEADER_SIZE).limit(HEADER_SIZE + (int) words * Long.BYTES).slice().order(ByteOrder.LITTLE_ENDIAN);
+            return new MappedBloomFilter(data.asLongBuffer(), mapped.getInt(12), mapped.getLong(24));
+        }
+    }
+
+    /**
+     * Copies a filter into a direct buffer, for streams that cannot be mapped.
+     */
+    public static MappedBloomFilter readFrom(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        din.readFully(header.array());
+        long words = checkHeader(header);
+        if (words * Long.BYTES > Integer.MAX_VALUE) {
+            throw new IOException("Mapped bloom filter too large: " + words + " words");
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect((int) words * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] chunk = new byte[1 << 16];
+        while (data.hasRemaining()) {
+            int length = Math.min(chunk.length, data.remaining());
+            din.readFully(chunk, 0, length);
+            data.put(chunk, 0, length);
+        }
+        data.flip();
+        return new MappedBloomFilter(data.asLongBuffer(), header.getInt(12), header.getLong(24));
+    }
+
+    private static long checkHeader(ByteBuffer header) throws IOException {
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a mapped bloom filter");
+        }
+        if (header.getInt(4) != VERSION || header.getInt(8) != STRATEGY_MURMUR128_MITZ_64) {
+            throw new IOException("Unsupported mapped bloom filter version " + header.getInt(4) + ", strategy " + header.getInt(8));
+        }
+        long words = header.getLong(16);
+        if (words <= 0 || words > Integer.MAX_VALUE || header.getInt(12) <= 0) {
+            throw new IOException("Invalid mapped bloom filter geometry: " + words + " words, " + header.getInt(12) + " hash functions");
+        }
+        return words;
+    }
+
+    public boolean mightContain(long hash1, long hash2) {
+        long combinedHash = hash1;
+        for (int i = 0; i < numHashFunctions; i++) {
+            if (!get((combinedHash & Long.MAX_VALUE) % bitSize)) {
+                return false;
+            }
+            combinedHash += hash2;
+        }
+        return true;
+    }
+
+    /**
+     * mightContain for count keys at once, probed round by round as in ConcurrentBloomFilter.
+     */
+    public void mightContain(long[] hashes, int count, boolean[] results) {
+        long[] combinedHashes = new long[count];
+        int[] pending = new int[count];
+        for (int i = 0; i < count; i++) {
+            combinedHashes[i] = hashes[2 * i];
+            pending[i] = i;
+            results[i] = true;
+        }
+        int amtPending = count;
+        for (int round = 0; round < numHashFunctions && amtPending > 0; round++) {
+            int amtKept = 0;
+            for (int p = 0; p < amtPending; p++) {
+                int i = pending[p];
+                if (get((combinedHashes[i] & Long.MAX_VALUE) % bitSize)) {
+                    combinedHashes[i] += hashes[2 * i + 1];
+                    pending[amtKept++] = i;
+                } else {
+                    results[i] = false;
+                }
+            }
+            amtPending = amtKept;
+        }
+    }
+
+    /**
+     * @param key the lowercase hex of a hash, or a domain, as ASCII bytes
+     */
+    public boolean mightContain(byte[] key) {
+        long[] hash = new long[2];
+        Murmur3.hash128(key, hash);
+        return mightContain(hash[0], hash[1]);
+    }
+
+    private boolean get(long bitIndex) {
+        return (data.get((int) (bitIndex >>> 6)) & (1L << bitIndex)) != 0;
+    }
+
+    public int numHashFunctions() {
+        return numHashFunctions;
+    }
+
+    public long bitSize() {
+        return bitSize;
+    }
+
+    /**
+     * @return the number of keys that were put into the filter
+     */
+    public long entries() {
+        return entries;
+    }
+
+    /**
+     * @return the false positive rate for the keys that were put, estimated from the geometry rather than counting set bits,
+     * which would read every page of the file
+     */
+    public double expectedFpp() {
+        return Math.pow(1 - Math.exp(-(double) numHashFunctions * entries / bitSize), numHashFunctions);
+    }
+}
@@ -0,0 +1,212 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Timings and counters of one run, per stage and per database file, written as JSON next to the human readable report.
+ * Set -Dhypatia.metrics=&lt;file&gt; to write them; they are collected either way, as doing so costs a few calls per file.
+ */
+public final class Metrics {
+    public static final String TARGET = System.getProperty("hypatia.metrics");
+
+    private final String tool;
+    private final long started = System.currentTimeMillis();
+    private final List<String> stages = new ArrayList<>();
+    private final List<String> sources = new ArrayList<>();
+    private final Map<String, Long> totals = new LinkedHashMap<>();
+
+    public Metrics(String tool) {
+        this.tool = tool;
+    }
+
+    /**
+     * Starts timing a stage, which is recorded once the returned Stage is closed.
+     * Stages should not overlap, as the heap peak is reset when one starts.
+     */
+    public Stage stage(String name) {
+        return new Stage(name);
+    }
+
+    /**
+     * Runs body as a stage of that name, recorded whether it completes or throws.
+     */
+    public void time(String name, Runnable body) {
+        Stage stage = stage(name);
+        try {
+            body.run();
+        } finally {
+            stage.close();
+        }
+    }
+
+    public final class Stage implements AutoCloseable {
+        private final String name;
+        private final long start = System.nanoTime();
+        private final long gcStart = gcMillis();
+        private final long gcCountStart = gcCount();
+
+        private Stage(String name) {
+            this.name = name;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            long nanos = System.nanoTime() - start;
+            long heapPeak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                    heapPeak += pool.getPeakUsage().getUsed();
+                }
+            }
+            Json stage = new Json()
+                    .field("name", name)
+                    .field("seconds", nanos / 1e9)
+                    .field("heapPeakBytes", heapPeak)
+                    .field("gcMillis", gcMillis() - gcStart)
+                    .field("gcCount", gcCount() - gcCountStart);
+            synchronized (Metrics.this) {
+                stages.add(stage.toString());
+            }
+        }
+    }
+
+    /**
+     * Records what a database file contributed. Lines counts valid, invalid and excluded lines, not comments or blank ones.
+     */
+    public synchronized void source(File database, FileReport result) {
+        double seconds = Math.max(result.nanos, 1) / 1e9;
+        long lines = (long) result.amtLinesValid + result.amtLinesInvalid + result.amtLinesExcluded;
+        Json source = new Json()
+                .field("file", database.getName())
+                .field("bytes", result.amtBytes)
+                .field("seconds", result.nanos / 1e9)
+                .field("linesPerSecond", Math.round(lines / seconds))
+                .field("bytesPerSecond", Math.round(result.amtBytes / seconds))
+                .field("valid", result.amtLinesValid)
+                .field("invalid", result.amtLinesInvalid)
+                .field("excluded", result.amtLinesExcluded)
+                .field("duplicate", result.amtLinesDuplicate)
+                .field("md5", result.amtSignaturesReadMD5)
+                .field("sha1", result.amtSignaturesReadSHA1)
+                .field("sha256", result.amtSignaturesReadSHA256);
+        if (result.error != null) {
+            source.field("error", result.error.toString());
+        }
+        sources.add(source.toString());
+    }
+
+    public synchronized void total(String name, long value) {
+        totals.put(name, value);
+    }
+
+    /**
+     * Writes everything recorded so far to TARGET, if it is set.
+     */
+    public synchronized void write() {
+        if (TARGET == null) {
+            return;
+        }
+        Json totalsJson = new Json();
+        for (Map.Entry<String, Long> total : totals.entrySet()) {
+            totalsJson.field(total.getKey(), total.getValue());
+        }
+        String json = new Json()
+                .field("tool", tool)
+                .field("startedMillis", started)
+                .field("seconds", (System.currentTimeMillis() - started) / 1e3)
+                .field("threads", ParallelIngest.THREADS)
+                .field("maxHeapBytes", Runtime.getRuntime().maxMemory())
+                .raw("totals", totalsJson.toString())
+                .raw("diagnostics", new Json().field("written", Diagnostics.amtWritten()).field("dropped", Diagnostics.amtDropped()).toString())
+                .raw("stages", "[\n    " + String.join(",\n    ", stages) + "\n  ]")
+                .raw("sources", "[\n    " + String.join(",\n    ", sources) + "\n  ]")
+                .toString(true);
+        try {
+            Files.write(new File(TARGET).toPath(), json.getBytes(StandardCharsets.UTF_8));
+            System.out.println("Wrote metrics to " + TARGET);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * A JSON object built field by field, just enough for the flat records above.
+     */
+    private static final class Json {
+        private final List<String> fields = new ArrayList<>();
+
+        private Json field(String name, String value) {
+            return raw(name, quote(value));
+        }
+
+        private Json field(String name, long value) {
+            return raw(name, Long.toString(value));
+        }
+
+        private Json field(String name, double value) {
+            return raw(name, Double.isFinite(value) ? String.format(Locale.ROOT, "%.3f", value) : "null");
+        }
+
+        private Json raw(String name, String json) {
+            fields.add(quote(name) + ": " + json);
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return toString(false);
+        }
+
+        private String toString(boolean multiline) {
+            return multiline ? "{\n  " + String.join(",\n  ", fields) + "\n}\n" : "{" + String.join(", ", fields) + "}";
+        }
+
+        private static String quote(String value) {
+            StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    quoted.append('\\').append(c);
+                } else if (c < 0x20) {
+                    quoted.append(String.format("\\u%04x", (int) c));
+                } else {
+                    quoted.append(c);
+                }
+            }
+            return quoted.append('"').toString();
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The known files of the NIST NSRL RDS as a sorted binary index, so they can be left out of the databases
+ * by one merge-join over the sorted candidates instead of a query per hash.
+ * The index holds the package names, then one section per hash type, md5 first: a count followed by that many records
+ * of the raw digest and the big-endian id of its package, sorted by digest, one record per digest.
+ * Build it with NsrlIndex &lt;index&gt; &lt;RDS file&gt;..., where each RDS file is either an RDS SQLite database,
+ * read through JDBC when a SQLite driver is on the classpath, or a CSV export with a header line:
+ * a file list with md5, sha1 and/or sha256 columns and a package_id or ProductCode column,
+ * or a package list with a package_id or ProductCode column and a name or ProductName column.
+ * Rows are sorted through ExternalDedupe, so -Dhypatia.memoryBudget (default 1g) bounds the memory an import takes.
+ */
+public final class NsrlIndex {
+    private static final int MAGIC = 0x4859504E; //"HYPN"
+    private static final int VERSION = 1;
+    private static final String[] TYPES = {"md5", "sha1", "sha256"};
+    private static final int[] DIGEST_LENGTHS = {16, 20, 32};
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private NsrlIndex() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: NsrlIndex <index> <RDS .db or .csv>...");
+            return;
+        }
+        long budget = ExternalDedupe.parseSize(System.getProperty("hypatia.memoryBudget", "1g")) / TYPES.length;
+        File spillDirectory = new File(System.getProperty("hypatia.spillDirectory", System.getProperty("java.io.tmpdir")));
+        Importer importer = new Importer(budget, spillDirectory);
+        System.out.println("Importing:");
+        boolean failed = false;
+        for (int i = 1; i < args.length; i++) {
+            File input = new File(args[i]);
+            System.out.println("\t" + input.getName());
+            try {
+                if (input.getName().endsWith(".db")) {
+                    importer.importDatabase(input);
+                } else {
+                    importer.importCsv(input);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                failed = true;
+            }
+        }
+        System.out.println("Read " + importer.amtRows + " rows, " + importer.amtInvalid + " invalid digests, " + importer.packages.size() + " packages");
+        File index = new File(args[0]);
+        if (failed) {
+            //a partial import would silently stop excluding the known files of whatever was missed
+            System.out.println("Some RDS files could not be imported, leaving " + index + " as it was");
+            System.exit(1);
+        }
+        try {
+            int[] counts = importer.write(index);
+            System.out.println("Wrote " + index + ": md5: " + counts[0] + ", sha1: " + counts[1] + ", sha256: " + counts[2] + ", "
+                    + index.length() + " bytes");
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to write " + index + ", leaving it as it was");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Collects digests tagged with their package id. The id is appended to the digest as four more bytes,
+     * so sorting the combined keys orders them by digest, and then by package id.
+     */
+    private static final class Importer {
+        private final ExternalDedupe[] tagged = new ExternalDedupe[TYPES.length];
+        private final Map<Integer, String> packages = new TreeMap<>();
+        private final byte[][] hex = new byte[TYPES.length][];
+        private long amtRows = 0;
+        private long amtInvalid = 0;
+
+        private Importer(long budget, File spillDirectory) {
+            for (int type = 0; type < TYPES.length; type++) {
+                tagged[type] = new ExternalDedupe(DIGEST_LENGTHS[type] + 4, budget, spillDirectory);
+                hex[type] = new byte[(DIGEST_LENGTHS[type] + 4) * 2];
+            }
+        }
+
+        private void importDatabase(File database) throws SQLException {
+            try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + database.getPath());
+                 Statement statement = connection.createStatement()) {
+                statement.setFetchSize(10000);
+                try (ResultSet rows = statement.executeQuery("SELECT package_id, name FROM PKG")) {
+                    while (rows.next()) {
+                        packages.put(rows.getInt(1), rows.getString(2));
+                    }
+                }
+                try (ResultSet rows = statement.executeQuery("SELECT package_id, md5, sha1, sha256 FROM FILE")) {
+                    while (rows.next()) {
+                        addRow(rows.getInt(1), new String[]{rows.getString(2), rows.getString(3), rows.getString(4)});
+                    }
+                }
+            } catch (SQLException e) {
+                if (e.getMessage() != null && e.getMessage().contains("No suitable driver")) {
+                    System.out.println("\t\tNo SQLite JDBC driver on the classpath, add one or export the FILE and PKG tables as CSV");
+                }
+                throw e;
+            }
+        }
+
+        private void importCsv(File csv) throws IOException {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csv), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+                String header = reader.readLine();
+                if (header == null) {
+                    return;
+                }
+                Map<String, Integer> columns = new HashMap<>();
+                List<String> names = split(header);
+                for (int c = 0; c < names.size(); c++) {
+                    columns.put(names.get(c).toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]", ""), c);
+                }
+                int packageColumn = columns.getOrDefault("packageid", columns.getOrDefault("productcode", -1));
+                int[] hashColumns = {columns.getOrDefault("md5", -1), columns.getOrDefault("sha1", -1), columns.getOrDefault("sha256", -1)};
+                int nameColumn = columns.getOrDefault("name", columns.getOrDefault("productname", -1));
+                boolean fileList = hashColumns[0] >= 0 || hashColumns[1] >= 0 || hashColumns[2] >= 0;
+                if (packageColumn < 0 || (!fileList && nameColumn < 0)) {
+                    System.out.println("\t\tNot a file or package list, skipped");
+                    return;
+                }
+
+                String line;
+                String[] digests = new String[TYPES.length];
+                while ((line = reader.readLine()) != null) {
+                    List<String> fields = split(line);
+                    if (fields.size() <= packageColumn) {
+                        continue;
+                    }
+                    int packageId = parsePackageId(fields.get(packageColumn));
+                    if (!fileList) {
+                        if (fields.size() > nameColumn) {
+                            packages.putIfAbsent(packageId, fields.get(nameColumn));
+                        }
+                        continue;
+                    }
+                    for (int type = 0; type < TYPES.length; type++) {
+                        digests[type] = hashColumns[type] >= 0 && hashColumns[type] < fields.size() ? fields.get(hashColumns[type]) : null;
+                    }
+                    addRow(packageId, digests);
+                }
+            }
+        }
+
+        private void addRow(int packageId, String[] digests) {
+            amtRows++;
+            for (int type = 0; type < TYPES.length; type++) {
+                String digest = digests[type];
+                if (digest == null || digest.isEmpty()) {
+                    continue;
+                }
+                byte[] key = hex[type];
+                if (!decodeHex(digest, key, DIGEST_LENGTHS[type] * 2)) {
+                    amtInvalid++;
+                    continue;
+                }
+                for (int c = 0; c < 8; c++) {
+                    key[DIGEST_LENGTHS[type] * 2 + c] = (byte) Character.forDigit((packageId >>> (28 - 4 * c)) & 0xF, 16);
+                }
+                tagged[type].add(key);
+            }
+        }
+
+        /**
+         * Writes the index, keeping the lowest package id of a digest listed by several packages.
+         *
+         * @return the number of md5, sha1 and sha256 digests written
+         */
+        private int[] write(File index) throws IOException {
+            ExternalDedupe.RunFile[] runs = new ExternalDedupe.RunFile[TYPES.length];
+            for (int type = 0; type < TYPES.length; type++) {
+                runs[type] = tagged[type].finish();
+            }
+            int[] counts = new int[TYPES.length];
+            File temporary = new File(index.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), BUFFER_SIZE))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(packages.size());
+                for (Map.Entry<Integer, String> pkg : packages.entrySet()) {
+                    out.writeInt(pkg.getKey());
+                    out.writeUTF(pkg.getValue() == null ? "" : pkg.getValue());
+                }
+                for (int type = 0; type < TYPES.length; type++) {
+                    int digestLength = DIGEST_LENGTHS[type];
+                    int recordLength = digestLength + 4;
+                    long[] previous = new long[SortedDigests.words(recordLength)];
+                    int[] count = {0};
+                    ExternalDedupe.forEachKey(runs[type], recordLength, key -> {
+                        if (count[0] == 0 || compareDigest(key, previous, digestLength) != 0) {
+                            count[0]++;
+                            System.arraycopy(key, 0, previous, 0, previous.length);
+                        }
+                    });
+                    counts[type] = count[0];
+                    out.writeInt(count[0]);
+                    count[0] = 0;
+                    ExternalDedupe.forEachKey(runs[type], recordLength, key -> {
+                        if (count[0] == 0 || compareDigest(key, previous, digestLength) != 0) {
+                            try {
+                                SortedDigests.write(out, key, 0, recordLength);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                            count[0]++;
+                            System.arraycopy(key, 0, previous, 0, previous.length);
+                        }
+                    });
+                    Files.deleteIfExists(runs[type].file.toPath());
+                }
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temporary.toPath());
+                throw e;
+            }
+            Files.move(temporary.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return counts;
+        }
+    }
+
+    /**
+     * Leaves the known files out of sorted candidates by walking the index alongside them.
+     * Each hash type is joined in turn, md5 first, with its candidates offered in ascending order.
+     */
+    public static final class Joiner implements AutoCloseable {
+        private final File file;
+        private final DataInputStream in;
+        private final Map<Integer, String> packages = new HashMap<>();
+        private final Map<Integer, Integer> packageHits = new HashMap<>();
+        private final int[] hits = new int[TYPES.length];
+        private int type = -1;
+        private int remaining = 0;
+        private long[] record;
+        private boolean recordLoaded = false;
+
+        public Joiner(File file) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                in.close();
+                throw new IOException(file + " is not an NSRL index of version " + VERSION);
+            }
+            int amtPackages = in.readInt();
+            for (int i = 0; i < amtPackages; i++) {
+                packages.put(in.readInt(), in.readUTF());
+            }
+        }
+
+        /**
+         * Moves on to the section of the next hash type, skipping what is left of the current one.
+         *
+         * @param digestLength the digest length in bytes of the section expected next, as a check
+         */
+        public void nextType(int digestLength) throws IOException {
+            if (type >= 0) {
+                in.skipNBytes((long) remaining * (DIGEST_LENGTHS[type] + 4));
+            }
+            type++;
+            if (type >= TYPES.length || DIGEST_LENGTHS[type] != digestLength) {
+                throw new IllegalStateException("Hash types must be joined in the order md5, sha1, sha256");
+            }
+            remaining = in.readInt();
+            record = new long[SortedDigests.words(digestLength + 4)];
+            recordLoaded = false;
+        }
+
+        /**
+         * @param keys packed digests of the current type, offered in ascending order
+         * @return true if digest index of keys is a known file, which is then counted to its package
+         */
+        public boolean contains(long[] keys, int index) {
+            int digestLength = DIGEST_LENGTHS[type];
+            int base = index * SortedDigests.words(digestLength);
+            while (true) {
+                if (!recordLoaded) {
+                    if (remaining == 0) {
+                        return false;
+                    }
+                    try {
+                        SortedDigests.read(in, record, 0, digestLength + 4);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    remaining--;
+                    recordLoaded = true;
+                }
+                int c = compareDigest(record, keys, base, digestLength);
+                if (c < 0) {
+                    recordLoaded = false;
+                } else {
+                    if (c == 0) {
+                        hits[type]++;
+                        packageHits.merge(packageId(record, digestLength), 1, Integer::sum);
+                        recordLoaded = false;
+                        return true;
+                    }
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * @return the known files left out, by type
+         */
+        public int[] hits() {
+            return hits.clone();
+        }
+
+        /**
+         * @return the number of packages that had a known file left out
+         */
+        public int amtPackages() {
+            return packageHits.size();
+        }
+
+        /**
+         * @return "count: name" for the limit packages with the most known files left out, most first
+         */
+        public List<String> topPackages(int limit) {
+            List<Map.Entry<Integer, Integer>> sorted = new ArrayList<>(packageHits.entrySet());
+            sorted.sort((a, b) -> a.getValue().equals(b.getValue()) ? Integer.compare(a.getKey(), b.getKey()) : Integer.compare(b.getValue(), a.getValue()));
+            List<String> top = new ArrayList<>();
+            for (int i = 0; i < Math.min(limit, sorted.size()); i++) {
+                int id = sorted.get(i).getKey();
+                top.add(sorted.get(i).getValue() + ": " + packages.getOrDefault(id, "package " + id));
+            }
+            return top;
+        }
+
+        public File file() {
+            return file;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Compares the digest part of two tagged keys, leaving out the package ids that follow.
+     */
+    private static int compareDigest(long[] a, long[] b, int digestLength) {
+        for (int w = 0; w < SortedDigests.words(digestLength); w++) {
+            long mask = digestMask(w, digestLength);
+            int c = Long.compareUnsigned(a[w] & mask, b[w] & mask);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Compares the digest part of a tagged key with a plain packed digest at base in keys.
+     */
+    private static int compareDigest(long[] tagged, long[] keys, int base, int digestLength) {
+        for (int w = 0; w < SortedDigests.words(digestLength); w++) {
+            int c = Long.compareUnsigned(tagged[w] & digestMask(w, digestLength), keys[base + w]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    private static long digestMask(int word, int digestLength) {
+        int bytes = Math.min(8, digestLength - word * 8);
+        return bytes == 8 ? -1L : -1L << (64 - 8 * bytes);
+    }
+
+    private static int packageId(long[] tagged, int digestLength) {
+        int id = 0;
+        for (int b = digestLength; b < digestLength + 4; b++) {
+            id = (id << 8) | (int) ((tagged[b / 8] >>> (56 - 8 * (b % 8))) & 0xFF);
+        }
+        return id;
+    }
+
+    private static int parsePackageId(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Lowercases digest into hex if it is length hexadecimal characters.
+     */
+    private static boolean decodeHex(String digest, byte[] hex, int length) {
+        if (digest.length() != length) {
+            return false;
+        }
+        for (int c = 0; c < length; c++) {
+            char ch = Character.toLowerCase(digest.charAt(c));
+            if ((ch < '0' || ch > '9') && (ch < 'a' || ch > 'f')) {
+                return false;
+            }
+            hex[c] = (byte) ch;
+        }
+        return true;
+    }
+
+    /**
+     * Splits a CSV line, honoring double quoted fields with commas and doubled quotes in them.
+     */
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,271 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Open-addressing set of fixed-length hex digests, stored decoded as raw big-endian words.
+ * A 16 byte MD5 takes two longs, a 20 byte SHA1 three and a 32 byte SHA256 four,
+ * instead of a String object with its own char array and a HashMap node per entry.
+ */
+public final class PackedHashSet {
+    private static final int INITIAL_SLOTS = 1 << 10;
+    private static final float MAX_LOAD = 0.8F;
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final int digestLength;
+    private final int words;
+    private final long[] probe;
+
+    private long[] table;
+    private long[] used;
+    private int mask;
+    private int size = 0;
+    private int resizeAt;
+
+    public PackedHashSet(int digestLength) {
+        if (digestLength <= 0 || digestLength > 64) {
+            throw new IllegalArgumentException("Unsupported digest length: " + digestLength);
+        }
+        this.digestLength = digestLength;
+        this.words = (digestLength + 7) / 8;
+        this.probe = new long[words];
+        allocate(INITIAL_SLOTS);
+    }
+
+    public int digestLength() {
+        return digestLength;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean add(CharSequence hex) {
+        decode(hex, probe);
+        return insertProbe();
+    }
+
+    /**
+     * Adds a lowercase hex digest held in the first digestLength * 2 bytes of hex.
+     */
+    public boolean add(byte[] hex) {
+        decode(hex, probe);
+        return insertProbe();
+    }
+
+    /**
+     * Adds every entry of other, which must hold digests of the same length.
+     */
+    public void addAll(PackedHashSet other) {
+        if (other.digestLength != digestLength) {
+            throw new IllegalArgumentException("Digest length mismatch: " + other.digestLength + " != " + digestLength);
+        }
+        ensureCapacity(size + other.size);
+        for (int slot = 0; slot <= other.mask; slot++) {
+            if (other.isUsed(slot)) {
+                System.arraycopy(other.table, slot * words, probe, 0, words);
+                insertProbe();
+            }
+        }
+    }
+
+    /**
+     * Grows the table up front so it holds entries without rehashing.
+     * Bulk copies from another table walk it in slot order, which only spreads out evenly over a table at least as large.
+     */
+    public void ensureCapacity(int entries) {
+        int slots = mask + 1;
+        while (entries > (int) (slots * MAX_LOAD)) {
+            slots *= 2;
+        }
+        if (slots != mask + 1) {
+            allocate(slots);
+        }
+    }
+
+    /**
+     * Adds the first count digests of keys, laid out as in SortedDigests.
+     */
+    public void addKeys(long[] keys, int count) {
+        ensureCapacity(size + count);
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(keys, i * words, probe, 0, words);
+            insertProbe();
+        }
+    }
+
+    /**
+     * @return every entry as packed big-endian words, sorted as in SortedDigests
+     */
+    public long[] toSortedKeys() {
+        long[] keys = new long[size * words];
+        int count = 0;
+        for (int slot = 0; slot <= mask; slot++) {
+            if (isUsed(slot)) {
+                System.arraycopy(table, slot * words, keys, count * words, words);
+                count++;
+            }
+        }
+        SortedDigests.sort(keys, count, words);
+        return keys;
+    }
+
+    /**
+     * Lookups are safe from several threads as long as nothing is being added.
+     */
+    public boolean contains(CharSequence hex) {
+        long[] key = new long[words];
+        decode(hex, key);
+        return find(key) >= 0;
+    }
+
+    public boolean contains(byte[] hex) {
+        long[] key = new long[words];
+        decode(hex, key);
+        return find(key) >= 0;
+    }
+
+    /**
+     * Calls action with the lowercase hex form of every entry, in table order.
+     * The array passed is reused between calls and must not be retained.
+     */
+    public void forEachHex(Consumer<byte[]> action) {
+        forEachHex(0, 1, action);
+    }
+
+    /**
+     * Like forEachHex(action), but only for the part'th of parts equal ranges of the table,
+     * so several threads can each walk their own part while nothing is being added.
+     */
+    public void forEachHex(int part, int parts, Consumer<byte[]> action) {
+        long slots = mask + 1L;
+        int from = (int) (slots * part / parts);
+        int to = (int) (slots * (part + 1) / parts);
+        byte[] hex = new byte[digestLength * 2];
+        for (int slot = from; slot < to; slot++) {
+            if (isUsed(slot)) {
+                encode(table, slot * words, hex);
+                action.accept(hex);
+            }
+        }
+    }
+
+    private boolean insertProbe() {
+        if (size >= resizeAt) {
+            allocate((mask + 1) * 2);
+        }
+        return insert(probe);
+    }
+
+    private void decode(CharSequence hex, long[] key) {
+        if (hex.length() != digestLength * 2) {
+            throw new IllegalArgumentException("Expected " + digestLength * 2 + " hex characters, got " + hex.length());
+        }
+        Arrays.fill(key, 0);
+        for (int c = 0; c < hex.length(); c++) {
+            int nibble = Character.digit(hex.charAt(c), 16);
+            if (nibble < 0) {
+                throw new IllegalArgumentException("Not hexadecimal: " + hex);
+            }
+            key[c >>> 4] |= (long) nibble << (60 - ((c & 15) << 2));
+        }
+    }
+
+    private void decode(byte[] hex, long[] key) {
+        Arrays.fill(key, 0);
+        for (int c = 0; c < digestLength * 2; c++) {
+            int b = hex[c];
+            key[c >>> 4] |= (long) ((b & 0xF) + 9 * (b >>> 6)) << (60 - ((c & 15) << 2));
+        }
+    }
+
+    private void encode(long[] source, int offset, byte[] hex) {
+        for (int c = 0; c < digestLength * 2; c++) {
+            hex[c] = HEX_DIGITS[(int) (source[offset + (c >>> 4)] >>> (60 - ((c & 15) << 2))) & 0xF];
+        }
+    }
+
+    private int slotOf(long[] source, int offset) {
+        long h = source[offset];
+        for (int w = 1; w < words; w++) {
+            h = h * 0x9E3779B97F4A7C15L + source[offset + w];
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    private boolean isUsed(int slot) {
+        return (used[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    private boolean matches(int slot, long[] key, int offset) {
+        int base = slot * words;
+        for (int w = 0; w < words; w++) {
+            if (table[base + w] != key[offset + w]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int find(long[] key) {
+        int slot = slotOf(key, 0);
+        while (isUsed(slot)) {
+            if (matches(slot, key, 0)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean insert(long[] key) {
+        int slot = slotOf(key, 0);
+        while (isUsed(slot)) {
+            if (matches(slot, key, 0)) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        System.arraycopy(key, 0, table, slot * words, words);
+        used[slot >>> 6] |= 1L << slot;
+        size++;
+        return true;
+    }
+
+    private void allocate(int slots) {
+        if ((long) slots * words > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("PackedHashSet exceeded maximum capacity at " + size + " entries");
+        }
+        long[] oldTable = table;
+        long[] oldUsed = used;
+        int oldSlots = oldTable == null ? 0 : mask + 1;
+
+        table = new long[slots * words];
+        used = new long[Math.max(1, slots >>> 6)];
+        mask = slots - 1;
+        resizeAt = (int) (slots * MAX_LOAD);
+        size = 0;
+
+        for (int slot = 0; slot < oldSlots; slot++) {
+            if ((oldUsed[slot >>> 6] & (1L << slot)) != 0) {
+                int target = slotOf(oldTable, slot * words);
+                while (isUsed(target)) {
+                    target = (target + 1) & mask;
+                }
+                System.arraycopy(oldTable, slot * words, table, target * words, words);
+                used[target >>> 6] |= 1L << target;
+                size++;
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Processes independent database files on a work-stealing pool.
+ * Set -Dhypatia.threads=1 to process them one at a time on the calling thread.
+ */
+public final class ParallelIngest {
+    public static final int THREADS = Math.max(1, Integer.getInteger("hypatia.threads", Runtime.getRuntime().availableProcessors()));
+    //files forEachFile runs or holds the result of at once
+    private static final int WINDOW = 2 * THREADS;
+
+    private ParallelIngest() {
+    }
+
+    /**
+     * Runs task for every file and passes each result to inOrder on the calling thread, in the order of files.
+     * Only files within WINDOW of the next one to pass on are started, so finished results do not pile up behind a slow file,
+     * and of those the larger ones first, so one big list does not end up running alone at the end.
+     */
+    public static <R> void forEachFile(File[] files, Function<File, R> task, BiConsumer<File, R> inOrder) {
+        if (THREADS == 1) {
+            for (File file : files) {
+                inOrder.accept(file, task.apply(file));
+            }
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(THREADS);
+        try {
+            List<ForkJoinTask<R>> results = new ArrayList<>(Collections.nCopies(files.length, null));
+            boolean[] started = new boolean[files.length];
+            Integer[] bySize = new Integer[files.length];
+            for (int i = 0; i < files.length; i++) {
+                bySize[i] = i;
+            }
+            Arrays.sort(bySize, Comparator.comparingLong((Integer i) -> files[i].length()).reversed());
+            int amtInFlight = 0;
+            for (int next = 0; next < files.length; next++) {
+                //every file in flight lies within the window, so while it is not full the next file is among those started here
+                for (int j = 0; j < bySize.length && amtInFlight < WINDOW; j++) {
+                    int i = bySize[j];
+                    if (i < next + WINDOW && !started[i]) {
+                        started[i] = true;
+                        amtInFlight++;
+                        results.set(i, pool.submit(() -> task.apply(files[i])));
+                    }
+                }
+                R result = results.set(next, null).join();
+                amtInFlight--;
+                inOrder.accept(files[next], result);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Runs task(0) to task(parts - 1) on the pool and waits for all of them.
+     */
+    public static void forEachPart(int parts, IntConsumer task) {
+        if (THREADS == 1) {
+            for (int part = 0; part < parts; part++) {
+                task.accept(part);
+            }
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(THREADS);
+        try {
+            List<ForkJoinTask<?>> results = new ArrayList<>();
+            for (int part = 0; part < parts; part++) {
+                int index = part;
+                results.add(pool.submit(() -> task.accept(index)));
+            }
+            for (ForkJoinTask<?> result : results) {
+                result.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * One instance of some mutable state per worker thread, all of which are kept for merging once the work is done.
+     */
+    public static final class PerThread<T> {
+        private final List<T> all = Collections.synchronizedList(new ArrayList<>());
+        private final ThreadLocal<T> local;
+
+        public PerThread(Supplier<T> factory) {
+            local = ThreadLocal.withInitial(() -> {
+                T value = factory.get();
+                all.add(value);
+                return value;
+            });
+        }
+
+        public T get() {
+            return local.get();
+        }
+
+        /**
+         * @return every instance created so far, only meaningful once all workers are done
+         */
+        public List<T> values() {
+            synchronized (all) {
+                return new ArrayList<>(all);
+            }
+        }
+    }
+}
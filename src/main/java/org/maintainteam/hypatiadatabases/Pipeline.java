@@ -0,0 +1,826 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Builds the databases of one or more Targets from a single read of the corpus.
+ * Every database file is parsed and hashed once, and its hashes go to the digest sets of each group of targets that reads it,
+ * minus that group's exclusions. Targets with the same sources and exclusions form one group and share its sets.
+ * A group whose targets all have fixed capacities, such as nerd built alone, keeps no set at all: its filters are filled as the files
+ * are read, so memory stays bounded by the filters, and its distinct counts are HyperLogLog estimates.
+ * Once every file is in, TargetWriter writes the files of each target and TargetVerifier reads them back and checks them.
+ * Arguments: &lt;raw directory&gt; [domain list]. A raw directory whose name contains -extended skips the extras and the domains,
+ * and builds only the targets made for it, leaving out the md5 hashes their production filter already holds.
+ */
+public final class Pipeline {
+    private static final double FPP = Double.parseDouble(System.getProperty("hypatia.fpp", "0.00001"));
+    //Set -Dhypatia.memoryBudget=<size>, such as 2g, to dedupe through sorted runs on disk, for corpora larger than the heap
+    private static final String MEMORY_BUDGET = System.getProperty("hypatia.memoryBudget");
+    private static final File SPILL_DIRECTORY = new File(System.getProperty("hypatia.spillDirectory", System.getProperty("java.io.tmpdir")));
+    private static final int[] DIGEST_LENGTHS = {16, 20, 32};
+    //Set -Dhypatia.nsrl=<index> to leave out the known files of an NsrlIndex, joined against the sorted hashes once every file is in
+    private static final String NSRL = System.getProperty("hypatia.nsrl");
+    //Set -Dhypatia.shards=N to also write every hash filter as N shards split by the leading bits of the digest, with a ShardIndex
+    private static final int SHARDS = Integer.getInteger("hypatia.shards", 1);
+    private static final int SHARD_BITS = SHARDS == 1 ? 0 : ShardIndex.bits(SHARDS);
+    //Set -Dhypatia.sources=true to also write hypatia-sources.bin, a SourceIndex of which files list each hash some target keeps
+    private static final boolean SOURCES = Boolean.getBoolean("hypatia.sources");
+
+    private final String basePath;
+    private final boolean extendedMode;
+    private final Metrics metrics;
+    //Set -Dhypatia.report=<file> to also write the report as HTML
+    private final HtmlReport report = new HtmlReport();
+    private final List<Group> groups = new ArrayList<>();
+    private final Set<String> setDomains = new HashSet<>();
+    private final TargetWriter writer;
+    private final TargetVerifier verifier;
+    private File[] databases;
+    //Set with -Dhypatia.checkpoint=<directory> to only parse the files that changed since the last run
+    private Checkpoint checkpoint = null;
+    //The id of every database file and which of them list each hash, with -Dhypatia.sources=true
+    private final Map<File, Integer> sourceIds = new HashMap<>();
+    private SourceIndex.Collector sources = null;
+    //The keys of each type every target wrote, which its filters are verified against
+    private final Map<Target, FilterFormat.Keys[]> written = new EnumMap<>(Target.class);
+    //Whether every group keeps its sets in memory, so what each file adds to the files before it can be counted exactly
+    private boolean exactAdded;
+
+    private int amtLinesValid = 0;
+    private int amtLinesInvalid = 0;
+    private int amtLinesExcluded = 0;
+    private int amtDomainsRead = 0;
+
+    /**
+     * Targets that read the same files and leave out the same hashes.
+     */
+    private static final class Group {
+        private final List<String> sources;
+        private final String exclusionsPath;
+        private final List<Target> targets = new ArrayList<>();
+        private final Set<File> files = new HashSet<>();
+        private Exclusions exclusions;
+        //the hashes of every file in file order, unless the group streams or sorts them on disk
+        private DigestSets sets;
+        //md5, sha1 and sha256 sorted on disk instead, when a memory budget is set
+        private ExternalDedupe[] external;
+        private FilterFormat.Keys[] keys;
+        private int[] nsrlHits = new int[3];
+        //whether every target has fixed capacities and nothing needs the exact sets, so the filters are filled as files are read
+        private boolean streaming;
+        //the md5, sha1 and sha256 filters of every target by file name, and the same builders by type to fill them
+        private Map<String, FilterFormat.Builder> streamed;
+        private FilterFormat.Builder[][] streamedByType;
+        //distinct estimates of what a streaming group adds, from the sizing pass or else sketched as files are read
+        private final ParallelIngest.PerThread<Sketches> sketches = new ParallelIngest.PerThread<>(Sketches::new);
+        private long[] estimates;
+
+        private Group(Target target) {
+            this.sources = target.sources();
+            this.exclusionsPath = target.exclusions();
+        }
+
+        private boolean accepts(Target target) {
+            return sources.equals(target.sources()) && exclusionsPath.equals(target.exclusions());
+        }
+
+        /**
+         * Adds the hashes of a file to the filters or sorted runs of the group, from the worker that read it.
+         * A group that keeps its sets in memory takes them in file order through addInOrder instead.
+         */
+        private void addAll(DigestSets hashes) {
+            hashes.forEachHex(hex -> {
+                if (exclusions.contains(hex)) {
+                    return;
+                }
+                if (streamed != null) {
+                    for (FilterFormat.Builder builder : streamedByType[type(hex.length)]) {
+                        builder.put(hex);
+                    }
+                    if (estimates == null) {
+                        sketches.get().add(hex);
+                    }
+                } else {
+                    external[type(hex.length)].add(hex);
+                }
+            });
+        }
+
+        /**
+         * @return whether hex is not excluded and was not in the sets yet
+         */
+        private boolean addInOrder(byte[] hex) {
+            return !exclusions.contains(hex) && sets.add(hex);
+        }
+
+        /**
+         * @return whether the distinct counts are known, which they are not if the run failed before the group was finished
+         */
+        private boolean counted() {
+            return streamed == null ? keys != null : estimates != null;
+        }
+
+        /**
+         * @return the number of distinct hashes of type, estimated for a streaming group
+         */
+        private long distinct(int type) {
+            return streamed == null ? keys[type].size() : estimates[type];
+        }
+
+        /**
+         * @param nsrl the known files to leave out, or null
+         * @return the distinct md5, sha1 and sha256 hashes
+         */
+        private FilterFormat.Keys[] finish(NsrlIndex.Joiner nsrl) throws IOException {
+            FilterFormat.Keys[] keys = new FilterFormat.Keys[3];
+            if (external == null) {
+                PackedHashSet[] sets = this.sets.sets();
+                for (int type = 0; type < 3; type++) {
+                    if (nsrl == null) {
+                        keys[type] = FilterFormat.Keys.of(sets[type]);
+                        continue;
+                    }
+                    //sorted for the join, and compacted in place as known files are dropped
+                    long[] sorted = sets[type].toSortedKeys();
+                    int words = SortedDigests.words(DIGEST_LENGTHS[type]);
+                    int kept = 0;
+                    nsrl.nextType(DIGEST_LENGTHS[type]);
+                    for (int i = 0; i < sets[type].size(); i++) {
+                        if (!nsrl.contains(sorted, i)) {
+                            System.arraycopy(sorted, i * words, sorted, kept * words, words);
+                            kept++;
+                        }
+                    }
+                    keys[type] = FilterFormat.Keys.of(sorted, kept, DIGEST_LENGTHS[type]);
+                }
+                return keys;
+            }
+            for (int type = 0; type < 3; type++) {
+                ExternalDedupe.RunFile run = external[type].finish();
+                if (nsrl != null) {
+                    nsrl.nextType(DIGEST_LENGTHS[type]);
+                    run = external[type].retain(run, key -> !nsrl.contains(key, 0));
+                }
+                keys[type] = FilterFormat.Keys.of(run, DIGEST_LENGTHS[type]);
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * HyperLogLog sketches of the md5, sha1 and sha256 hashes one worker saw.
+     */
+    private static final class Sketches {
+        private final HyperLogLog[] types = {new HyperLogLog(), new HyperLogLog(), new HyperLogLog()};
+        private final long[] murmur = new long[2];
+
+        private void add(byte[] hex) {
+            Murmur3.hash128(hex, murmur);
+            types[type(hex.length)].add(murmur[0]);
+        }
+
+        /**
+         * @return the estimated distinct md5, sha1 and sha256 hashes of every sketch together
+         */
+        private static long[] estimate(List<Sketches> partials) {
+            long[] estimates = new long[3];
+            for (int type = 0; type < 3; type++) {
+                HyperLogLog total = new HyperLogLog();
+                for (Sketches partial : partials) {
+                    total.merge(partial.types[type]);
+                }
+                estimates[type] = total.estimate();
+            }
+            return estimates;
+        }
+    }
+
+    /**
+     * Sketches every hash each of its groups would add, for sizing their filters before they are filled.
+     */
+    private static final class CardinalitySink implements HashLineParser.Sink {
+        private final List<Group> groups;
+
+        private CardinalitySink(List<Group> groups) {
+            this.groups = groups;
+        }
+
+        @Override
+        public void hash(byte[] hex) {
+            for (Group group : groups) {
+                if (!group.exclusions.contains(hex)) group.sketches.get().add(hex);
+            }
+        }
+
+        @Override
+        public void rejected(HashLineParser.Rejection reason, ByteBuffer line, int start, int end) {
+        }
+    }
+
+    private final class SignatureSink implements HashLineParser.Sink {
+        private final String name;
+        private final FileReport result;
+        private final boolean report;
+        //the groups that read the file
+        private final List<Group> reading;
+
+        private SignatureSink(String name, FileReport result, boolean report, List<Group> reading) {
+            this.name = name;
+            this.result = result;
+            this.report = report;
+            this.reading = reading;
+        }
+
+        @Override
+        public void hash(byte[] hex) {
+            addChecked(hex, reading, result);
+        }
+
+        @Override
+        public void rejected(HashLineParser.Rejection reason, ByteBuffer line, int start, int end) {
+            if (reason == HashLineParser.Rejection.SHORT) {
+                return;
+            }
+            result.amtLinesInvalid++;
+            if (report) {
+                String label = reason == HashLineParser.Rejection.NOT_HEXADECIMAL ? "NOT HEXADECIMAL: " : "INVALID LENGTH: ";
+                Diagnostics.println(name + ": " + label + HashLineParser.text(line, start, end));
+            }
+        }
+    }
+
+    private Pipeline(String tool, String basePath, List<Target> targets) {
+        this.basePath = basePath;
+        this.extendedMode = basePath.contains("-extended");
+        this.metrics = new Metrics(tool);
+        this.writer = new TargetWriter(new File(basePath), new File(basePath + "../production/"), extendedMode, FPP, SHARD_BITS, setDomains);
+        this.verifier = new TargetVerifier(new File(basePath), SHARD_BITS, report);
+        for (Target target : targets) {
+            Group group = null;
+            for (Group candidate : groups) {
+                if (candidate.accepts(target)) {
+                    group = candidate;
+                }
+            }
+            if (group == null) {
+                group = new Group(target);
+                groups.add(group);
+            }
+            group.targets.add(target);
+        }
+        List<Group> exact = new ArrayList<>();
+        for (Group group : groups) {
+            //NSRL, sources, shards and the md5 hashes extended mode leaves out all need the exact sets
+            group.streaming = NSRL == null && !SOURCES && SHARD_BITS == 0 && !extendedMode;
+            for (Target target : group.targets) {
+                group.streaming &= target.streamable();
+            }
+            if (!group.streaming) {
+                exact.add(group);
+            }
+        }
+        if (MEMORY_BUDGET != null && !exact.isEmpty()) {
+            long budget = ExternalDedupe.parseSize(MEMORY_BUDGET) / (3L * exact.size());
+            for (Group group : exact) {
+                group.external = new ExternalDedupe[3];
+                for (int type = 0; type < 3; type++) {
+                    group.external[type] = new ExternalDedupe(DIGEST_LENGTHS[type], budget, SPILL_DIRECTORY);
+                }
+            }
+        } else {
+            for (Group group : exact) {
+                group.sets = new DigestSets();
+            }
+        }
+        exactAdded = exact.size() == groups.size() && MEMORY_BUDGET == null;
+    }
+
+    /**
+     * @param tool the name the report and metrics go by
+     */
+    public static void run(String tool, String[] args, List<Target> targets) {
+        boolean extendedMode = args[0].contains("-extended");
+        if (extendedMode) {
+            List<Target> extended = new ArrayList<>();
+            for (Target target : targets) {
+                if (target.extendedBase != null) {
+                    extended.add(target);
+                } else {
+                    System.out.println("Skipping " + target.name + ", which is not built in extended mode");
+                }
+            }
+            targets = extended;
+        }
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("No targets selected");
+        }
+        new Pipeline(tool, args[0], targets).run(args.length == 2 && !extendedMode ? new File(args[1]) : null);
+    }
+
+    /**
+     * Runs every stage, then drains the diagnostics and writes the metrics and report even if a stage failed.
+     */
+    private void run(File domainDatabase) {
+        Throwable failure = null;
+        try {
+            build(domainDatabase);
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            finish(failure);
+        }
+    }
+
+    private void build(File domainDatabase) {
+        metrics.time("exclusions", this::loadExclusions);
+        if (domainDatabase != null) {
+            metrics.time("domains", () -> loadDomains(domainDatabase));
+        }
+
+        String checkpointDirectory = System.getProperty("hypatia.checkpoint");
+        if (checkpointDirectory != null) {
+            checkpoint = Checkpoint.open(new File(checkpointDirectory));
+            System.out.println("Using checkpoint " + checkpointDirectory + " with " + checkpoint.size() + " recorded files");
+        }
+
+        databases = listDatabases();
+        for (Group group : groups) {
+            if (group.streaming) {
+                metrics.time("sizing", this::createStreamedFilters);
+                break;
+            }
+        }
+
+        System.out.println("Processing signatures:");
+        report.heading("Sources read");
+        report.header("File", "md5", "sha1", "sha256", "Duplicate", "Invalid", "Excluded", "Notes");
+        metrics.time("signatures", this::readSignatures);
+        metrics.time("merge", this::finishGroups);
+        if (sources != null) {
+            metrics.time("sources", this::writeSources);
+        }
+        System.out.println("Lines read: valid: " + amtLinesValid + ", invalid: " + amtLinesInvalid + ", excluded: " + amtLinesExcluded);
+        for (Group group : groups) {
+            System.out.println((group.streamed == null ? "Distinct count for " : "Estimated distinct count for ") + names(group.targets)
+                    + ": md5: " + group.distinct(0) + ", sha1: " + group.distinct(1) + ", sha256: " + group.distinct(2) + ", domains: " + setDomains.size());
+        }
+
+        for (Group group : groups) {
+            for (Target target : group.targets) {
+                metrics.time("write " + target.name, () -> written.put(target, writer.write(target, group.keys, group.streamed, group.estimates)));
+                metrics.time("verify " + target.name, () -> verifier.verify(target, written.get(target), group.estimates, group.exclusions));
+            }
+        }
+    }
+
+    private void loadExclusions() {
+        System.out.println("Processing exclusions:");
+        Map<String, Exclusions> loaded = new HashMap<>();
+        for (Group group : groups) {
+            group.exclusions = loaded.computeIfAbsent(group.exclusionsPath, path -> Exclusions.load(new File(basePath + path)));
+        }
+        for (Exclusions exclusions : loaded.values()) {
+            System.out.println("\tLoaded " + exclusions.size() + " excluded hashes");
+        }
+    }
+
+    private void loadDomains(File domainDatabase) {
+        System.out.println("Processing domains:");
+        if (domainDatabase.exists()) {
+            amtDomainsRead = DomainIndex.forEachDomain(domainDatabase, setDomains::add);
+        }
+        System.out.println("\tLoaded " + setDomains.size() + " domains from " + amtDomainsRead + " lines");
+    }
+
+    /**
+     * Reads every database file of every group into the sets of the groups that read it, and the source index if one is collected.
+     */
+    private void readSignatures() {
+        if (SOURCES) {
+            String[] names = new String[databases.length];
+            for (int i = 0; i < databases.length; i++) {
+                sourceIds.put(databases[i], i);
+                names[i] = databases[i].getPath().substring(basePath.length());
+            }
+            //the tagged hashes are sorted beside the digest sets, so they get a budget of their own
+            long budget = MEMORY_BUDGET == null ? Runtime.getRuntime().maxMemory() / 4 : ExternalDedupe.parseSize(MEMORY_BUDGET);
+            sources = new SourceIndex.Collector(names, budget, SPILL_DIRECTORY);
+        }
+        if (!exactAdded) {
+            System.out.println("\tCounting what each file lists rather than what it adds, as the hashes are not kept in memory");
+        }
+        ParallelIngest.forEachFile(databases, this::processDatabase, (databaseLocation, result) -> {
+            if (result.hashes != null) {
+                addInOrder(databaseLocation, result);
+                result.hashes = null;
+            }
+            System.out.println("\t" + databaseLocation.getName());
+            result.printLog();
+            if (result.error == null) {
+                System.out.println("\t\tmd5: " + result.amtSignaturesAddedMD5 + ", sha1: " + result.amtSignaturesAddedSHA1 + ", sha256: " + result.amtSignaturesAddedSHA256);
+            }
+            if (result.amtLinesInvalid + result.amtLinesExcluded > 0) {
+                System.out.println("\t\tinvalid: " + result.amtLinesInvalid + ", excluded: " + result.amtLinesExcluded);
+            }
+            metrics.source(databaseLocation, result);
+            report.file(databaseLocation, result);
+            amtLinesValid += result.amtLinesValid;
+            amtLinesInvalid += result.amtLinesInvalid;
+            amtLinesExcluded += result.amtLinesExcluded;
+        });
+        if (checkpoint != null) {
+            checkpoint.save();
+            System.out.println("Replayed " + checkpoint.amtReplayed() + " of " + databases.length + " files from checkpoint");
+        }
+    }
+
+    /**
+     * Merges or sorts the hashes of every group into its final keys, without the NSRL known files if an index is set.
+     */
+    private void finishGroups() {
+        try {
+            for (Group group : groups) {
+                if (group.streamed != null) {
+                    if (group.estimates == null) {
+                        group.estimates = Sketches.estimate(group.sketches.values());
+                    }
+                } else if (NSRL == null) {
+                    group.keys = group.finish(null);
+                } else {
+                    joinNsrl(group);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to merge the sorted hashes", e);
+        }
+    }
+
+    /**
+     * Creates the md5, sha1 and sha256 filters of every streaming group before any file is read. With -Dhypatia.autoSize=true
+     * they are sized from a HyperLogLog pass over the files, plus three standard errors so an underestimate does not push
+     * a filter past its false positive rate; otherwise to the capacities of their target.
+     */
+    private void createStreamedFilters() {
+        List<Group> streaming = new ArrayList<>();
+        for (Group group : groups) {
+            if (group.streaming) {
+                streaming.add(group);
+            }
+        }
+        if (Target.AUTO_SIZE) {
+            estimateCardinalities(streaming);
+        }
+        double margin = 1 + 3 * new HyperLogLog().standardError();
+        System.out.println("Sizing filters at fpp " + FPP + ":");
+        report.heading("Filter sizing");
+        report.header("Filter", "Estimated", "Capacity", "Geometry");
+        for (Group group : streaming) {
+            group.streamed = new HashMap<>();
+            group.streamedByType = new FilterFormat.Builder[3][];
+            for (int type = 0; type < 3; type++) {
+                List<FilterFormat.Builder> builders = new ArrayList<>();
+                for (Target target : group.targets) {
+                    long estimated = group.estimates == null ? 0 : (long) Math.ceil(group.estimates[type] * margin);
+                    long capacity = Math.max(1, target.capacity(type, estimated, extendedMode));
+                    for (FilterFormat format : target.formats()) {
+                        String name = target.fileName(Target.TYPES[type], format.suffix);
+                        FilterFormat.Builder builder;
+                        try {
+                            builder = format.builder(0, capacity, FPP, null);
+                        } catch (IOException e) {
+                            throw new IllegalStateException("Failed to create " + name, e);
+                        }
+                        group.streamed.put(name, builder);
+                        builders.add(builder);
+                        String estimate = group.estimates == null ? "" : "estimated " + group.estimates[type] + ", ";
+                        System.out.println("\t" + name + ": " + estimate + "capacity " + capacity + ", " + builder.geometry());
+                        report.row(name, group.estimates == null ? "" : group.estimates[type], capacity, builder.geometry());
+                    }
+                }
+                group.streamedByType[type] = builders.toArray(new FilterFormat.Builder[0]);
+            }
+        }
+    }
+
+    /**
+     * Parses every file the streaming groups read once, only to sketch the distinct hashes each of them would add.
+     * The sketches are all the pass keeps, and the estimates stand for the distinct counts of the run.
+     */
+    private void estimateCardinalities(List<Group> streaming) {
+        System.out.println("Estimating distinct entries:");
+        ParallelIngest.forEachFile(databases, databaseLocation -> {
+            HashLineParser.Format format = HashLineParser.Format.of(databaseLocation.getName());
+            List<Group> reading = new ArrayList<>();
+            for (Group group : streaming) {
+                if (group.files.contains(databaseLocation)) {
+                    reading.add(group);
+                }
+            }
+            return format == null || reading.isEmpty() ? new FileReport()
+                    : DatabaseReader.read(databaseLocation, format, result -> new CardinalitySink(reading));
+        }, (databaseLocation, result) -> {
+        });
+        for (Group group : streaming) {
+            group.estimates = Sketches.estimate(group.sketches.values());
+            System.out.println("\t" + names(group.targets) + ": md5: " + group.estimates[0] + ", sha1: " + group.estimates[1]
+                    + ", sha256: " + group.estimates[2]);
+        }
+    }
+
+    /**
+     * @return every database file of every group, sorted by path, after recording which of them each group reads
+     */
+    private File[] listDatabases() {
+        Set<File> databases = new TreeSet<>();
+        for (Group group : groups) {
+            for (String source : group.sources) {
+                if (extendedMode && !source.isEmpty()) {
+                    continue;
+                }
+                File[] files = new File(basePath + source).listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    if (file.isFile()) {
+                        group.files.add(file);
+                        databases.add(file);
+                    }
+                }
+            }
+        }
+        return databases.toArray(new File[0]);
+    }
+
+    private FileReport processDatabase(File databaseLocation) {
+        HashLineParser.Format format = HashLineParser.Format.of(databaseLocation.getName());
+        if (format == null) {
+            return new FileReport();
+        }
+        String name = databaseLocation.getName();
+        boolean report = format != HashLineParser.Format.BEST_EFFORT;
+        List<Group> reading = readers(databaseLocation);
+        FileReport result = checkpoint == null ? null : checkpoint.replay(databaseLocation);
+        if (result == null) {
+            result = DatabaseReader.read(databaseLocation, format, part -> {
+                part.hashes = new DigestSets();
+                return new SignatureSink(name, part, report, reading);
+            });
+            if (checkpoint != null && result.error == null) {
+                checkpoint.record(databaseLocation, result);
+            }
+        }
+        if (result.hashes != null) {
+            if (sources != null) {
+                int source = sourceIds.get(databaseLocation);
+                result.hashes.forEachHex(hash -> {
+                    if (keptByAny(hash, reading)) sources.add(hash, source);
+                });
+            }
+            for (Group group : reading) {
+                if (group.sets == null) {
+                    group.addAll(result.hashes);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the hashes of a file to the groups that keep their sets in memory, on the calling thread in the order of the files,
+     * so what it adds to the files before it is the same on every run: the hashes new to the sets of any group that reads it.
+     * Without such sets the added counts are what the file lists once.
+     */
+    private void addInOrder(File databaseLocation, FileReport result) {
+        List<Group> reading = readers(databaseLocation);
+        int[] added = new int[3];
+        result.hashes.forEachHex(hash -> {
+            boolean isNew = false;
+            for (Group group : reading) {
+                if (group.sets != null) {
+                    isNew |= group.addInOrder(hash);
+                }
+            }
+            if (exactAdded ? isNew : keptByAny(hash, reading)) {
+                added[type(hash.length)]++;
+            }
+        });
+        result.amtSignaturesAddedMD5 = added[0];
+        result.amtSignaturesAddedSHA1 = added[1];
+        result.amtSignaturesAddedSHA256 = added[2];
+        result.amtLinesDuplicate = result.amtLinesValid - added[0] - added[1] - added[2];
+    }
+
+    /**
+     * Builds the source index from the hashes collected while reading, writes it, and reports how much each file lists alone
+     * and which file it shares the most with. It is read back and every hash of every group must be attributed.
+     */
+    private void writeSources() {
+        System.out.println("Writing source attribution:");
+        File file = new File(basePath, "hypatia-sources.bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            sources.build().writeTo(out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write " + file, e);
+        }
+        SourceIndex index;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            index = SourceIndex.readFrom(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read back " + file, e);
+        }
+        for (Group group : groups) {
+            for (FilterFormat.Keys keys : group.keys) {
+                LongAdder amtMissing = new LongAdder();
+                keys.forEach(hex -> {
+                    if (index.sources(hex).length == 0) amtMissing.increment();
+                });
+                if (amtMissing.sum() != 0) {
+                    throw new IllegalStateException(file.getName() + ": " + amtMissing.sum() + " of " + keys.size() + " hashes of "
+                            + names(group.targets) + " not attributed");
+                }
+            }
+        }
+        System.out.println("\t" + file.getName() + ": " + index.entries() + " hashes from " + index.amtSources() + " files in "
+                + index.combinations() + " combinations, " + file.length() + " bytes, "
+                + String.format("%.1f", file.length() * 8.0 / Math.max(index.entries(), 1)) + " bits per hash");
+        metrics.total("attributedHashes", index.entries());
+
+        long[] listed = index.listed();
+        long[] exclusive = index.exclusive();
+        Integer[] byListed = new Integer[index.amtSources()];
+        for (int source = 0; source < byListed.length; source++) {
+            byListed[source] = source;
+        }
+        Arrays.sort(byListed, (a, b) -> Long.compare(listed[b], listed[a]));
+        report.heading("Source overlap");
+        report.header("File", "Listed", "Only here", "Most shared with", "Shared");
+        for (int source : byListed) {
+            if (listed[source] == 0) {
+                continue;
+            }
+            long[] overlaps = index.overlaps(source);
+            int shared = -1;
+            for (int other = 0; other < overlaps.length; other++) {
+                if (other != source && overlaps[other] > 0 && (shared < 0 || overlaps[other] > overlaps[shared])) {
+                    shared = other;
+                }
+            }
+            System.out.println("\t" + index.source(source) + ": " + listed[source] + " listed, " + exclusive[source] + " only here"
+                    + (shared < 0 ? "" : ", most shared with " + index.source(shared) + ": " + overlaps[shared]));
+            report.row(index.source(source), listed[source], exclusive[source], shared < 0 ? "" : index.source(shared), shared < 0 ? 0 : overlaps[shared]);
+        }
+    }
+
+    /**
+     * Finishes the sets of group without the known files of the NSRL index, and reports what was left out by package.
+     */
+    private void joinNsrl(Group group) throws IOException {
+        try (NsrlIndex.Joiner nsrl = new NsrlIndex.Joiner(new File(NSRL))) {
+            group.keys = group.finish(nsrl);
+            group.nsrlHits = nsrl.hits();
+            System.out.println("NSRL known files left out for " + names(group.targets) + ": md5: " + group.nsrlHits[0] + ", sha1: " + group.nsrlHits[1]
+                    + ", sha256: " + group.nsrlHits[2] + ", from " + nsrl.amtPackages() + " packages");
+            for (String pkg : nsrl.topPackages(10)) {
+                System.out.println("\t" + pkg);
+            }
+        }
+    }
+
+    /**
+     * @return the groups that read file
+     */
+    private List<Group> readers(File file) {
+        List<Group> reading = new ArrayList<>();
+        for (Group group : groups) {
+            if (group.files.contains(file)) {
+                reading.add(group);
+            }
+        }
+        return reading;
+    }
+
+    /**
+     * @return whether any of the groups leaves hash in
+     */
+    private static boolean keptByAny(byte[] hash, List<Group> groups) {
+        for (Group group : groups) {
+            if (!group.exclusions.contains(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects a hash into the set of its file and counts it into the report, as excluded if every group reading the file leaves it out.
+     * The set keeps excluded hashes, as snapshots do, and each group leaves out its own as the hashes are added to it,
+     * where addInOrder counts what the file adds.
+     */
+    private void addChecked(byte[] hash, List<Group> reading, FileReport result) {
+        result.hashes.add(hash);
+        if (!keptByAny(hash, reading)) {
+            result.amtLinesExcluded++;
+            return;
+        }
+
+        switch (hash.length) {
+            case 32:
+                result.amtSignaturesReadMD5++;
+                break;
+            case 40:
+                result.amtSignaturesReadSHA1++;
+                break;
+            default:
+                result.amtSignaturesReadSHA256++;
+                break;
+        }
+        result.amtLinesValid++;
+    }
+
+    /**
+     * @return 0, 1 or 2 for the md5, sha1 or sha256 hex of hexLength characters
+     */
+    private static int type(int hexLength) {
+        return hexLength == 32 ? 0 : hexLength == 40 ? 1 : 2;
+    }
+
+    private static String names(List<Target> targets) {
+        List<String> names = new ArrayList<>();
+        for (Target target : targets) {
+            names.add(target.name);
+        }
+        return String.join(", ", names);
+    }
+
+    /**
+     * Drains the diagnostics and writes the metrics and report of this run, with what was counted before a failure.
+     *
+     * @param failure what stopped the run, or null
+     */
+    private void finish(Throwable failure) {
+        Diagnostics.close();
+        if (Diagnostics.amtWritten() + Diagnostics.amtDropped() > 0) {
+            System.out.println("Diagnostics: " + Diagnostics.amtWritten() + " lines written to " + (Diagnostics.TARGET != null ? Diagnostics.TARGET : "standard error")
+                    + ", " + Diagnostics.amtDropped() + " dropped");
+        }
+        metrics.total("linesValid", amtLinesValid);
+        metrics.total("linesInvalid", amtLinesInvalid);
+        metrics.total("linesExcluded", amtLinesExcluded);
+        for (Group group : groups) {
+            if (!group.counted()) {
+                continue;
+            }
+            String prefix = group.targets.get(0).name;
+            metrics.total(prefix + "DistinctMD5", group.distinct(0));
+            metrics.total(prefix + "DistinctSHA1", group.distinct(1));
+            metrics.total(prefix + "DistinctSHA256", group.distinct(2));
+            if (NSRL != null) {
+                metrics.total(prefix + "NsrlMD5", group.nsrlHits[0]);
+                metrics.total(prefix + "NsrlSHA1", group.nsrlHits[1]);
+                metrics.total(prefix + "NsrlSHA256", group.nsrlHits[2]);
+            }
+        }
+        metrics.total("domainsRead", amtDomainsRead);
+        metrics.total("domainsAdded", setDomains.size());
+        metrics.write();
+
+        report.heading("Summary");
+        report.row("Files with hashes", report.amtFilesListed());
+        report.row("Files without any, not listed", report.amtFilesSkipped());
+        report.row("Lines", "valid: " + amtLinesValid + ", invalid: " + amtLinesInvalid + ", excluded: " + amtLinesExcluded);
+        for (Group group : groups) {
+            if (!group.counted()) {
+                continue;
+            }
+            report.row((group.streamed == null ? "Distinct for " : "Estimated distinct for ") + names(group.targets), "md5: " + group.distinct(0)
+                    + ", sha1: " + group.distinct(1) + ", sha256: " + group.distinct(2) + ", domains: " + setDomains.size());
+            if (NSRL != null) {
+                report.row("NSRL known files left out for " + names(group.targets), "md5: " + group.nsrlHits[0] + ", sha1: " + group.nsrlHits[1]
+                        + ", sha256: " + group.nsrlHits[2]);
+            }
+        }
+        report.row("Diagnostics", Diagnostics.amtWritten() + " lines written, " + Diagnostics.amtDropped() + " dropped");
+        if (failure != null) {
+            report.row("Failed", failure.toString());
+        }
+        report.close();
+    }
+}
@@ -0,0 +1,284 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scans directory trees against the hypatia-*-bloom.bin filters as a client would, to check a build and measure scan throughput.
+ * A hypatia-*-mapped.bin next to them is mapped instead, which skips loading the filter onto the heap.
+ * Directories are walked in parallel, every file is read once and its md5, sha1 and sha256 computed in the same pass,
+ * and the digests of a batch of files are probed together.
+ * Usage: Scan &lt;directory with the filters&gt; &lt;path to scan&gt;...
+ */
+public class Scan {
+    private static final String[] TYPES = {"md5", "sha1", "sha256"};
+    private static final String[] ALGORITHMS = {"MD5", "SHA-1", "SHA-256"};
+    //handed to all three digests in turn while it is still in cache
+    private static final int SLICE_SIZE = 256 << 10;
+    //files up to this size are read into a reused direct buffer, larger ones are mapped
+    private static final int READ_SIZE = 1 << 20;
+    //files hashed before their digests are probed together
+    private static final int BATCH_SIZE = 64;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private static final Probe[] filters = new Probe[TYPES.length];
+    private static final ThreadLocal<Hasher> hashers = ThreadLocal.withInitial(Hasher::new);
+
+    private static final LongAdder amtFiles = new LongAdder();
+    private static final LongAdder amtBytes = new LongAdder();
+    private static final LongAdder amtProbed = new LongAdder();
+    private static final Queue<String[]> matches = new ConcurrentLinkedQueue<>();
+    private static final Queue<String> errors = new ConcurrentLinkedQueue<>();
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: Scan <directory with the filters> <path to scan>...");
+            return;
+        }
+
+        System.out.println("Loading filters:");
+        for (int type = 0; type < TYPES.length; type++) {
+            long loadStart = System.nanoTime();
+            File mappedFile = new File(args[0], "hypatia-" + TYPES[type] + "-mapped.bin");
+            File filterFile = new File(args[0], "hypatia-" + TYPES[type] + "-bloom.bin");
+            try {
+                if (mappedFile.exists()) {
+                    MappedBloomFilter filter = MappedBloomFilter.map(mappedFile);
+                    filters[type] = filter::mightContain;
+                    System.out.println("\t" + TYPES[type] + ": " + filter.entries() + " entries, " + filter.numHashFunctions() + " hash functions, "
+                            + mappedFile.length() + " bytes, mapped in " + String.format("%.1f", (System.nanoTime() - loadStart) / 1e6) + "ms");
+                    continue;
+                }
+                if (!filterFile.exists()) {
+                    System.out.println("\t" + TYPES[type] + ": not found, skipped");
+                    continue;
+                }
+                try (InputStream in = new BufferedInputStream(new FileInputStream(filterFile), 1 << 16)) {
+                    ConcurrentBloomFilter filter = ConcurrentBloomFilter.readFrom(in);
+                    filters[type] = filter::mightContain;
+                    System.out.println("\t" + TYPES[type] + ": " + filter.approximateElementCount() + " entries, " + filter.numHashFunctions() + " hash functions, "
+                            + filterFile.length() + " bytes, loaded in " + String.format("%.1f", (System.nanoTime() - loadStart) / 1e6) + "ms");
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        System.out.println("Scanning:");
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(ParallelIngest.THREADS);
+        try {
+            for (int i = 1; i < args.length; i++) {
+                File path = new File(args[i]);
+                if (path.isDirectory()) {
+                    pool.invoke(new DirectoryTask(path));
+                } else {
+                    pool.invoke(new BatchTask(List.of(path)));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        String[][] sortedMatches = matches.toArray(new String[0][]);
+        Arrays.sort(sortedMatches, Comparator.comparing((String[] match) -> match[0]).thenComparing(match -> match[1]));
+        for (String[] match : sortedMatches) {
+            System.out.println("\t" + match[1] + ": " + match[2] + " " + match[0]);
+        }
+        String[] sortedErrors = errors.toArray(new String[0]);
+        Arrays.sort(sortedErrors);
+        for (String error : sortedErrors) {
+            System.out.println("\tFailed to read " + error);
+        }
+
+        System.out.println("Scanned " + amtFiles.sum() + " files, " + amtBytes.sum() + " bytes in " + String.format("%.2f", seconds) + "s using "
+                + ParallelIngest.THREADS + " threads");
+        System.out.println("Throughput: " + String.format("%.3f", amtBytes.sum() / seconds / 1e9) + " GB/s, "
+                + String.format("%.0f", amtFiles.sum() / seconds) + " files/s");
+        System.out.println("Probed " + amtProbed.sum() + " digests, " + sortedMatches.length + " matches, " + sortedErrors.length + " unreadable files");
+    }
+
+    /**
+     * The batched mightContain of a loaded filter.
+     */
+    private interface Probe {
+        void mightContain(long[] hashes, int count, boolean[] results);
+    }
+
+    private static final class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File directory;
+
+        private DirectoryTask(File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            File[] entries = directory.listFiles();
+            if (entries == null) {
+                errors.add(directory + ": cannot list directory");
+                return;
+            }
+            Arrays.sort(entries);
+            List<RecursiveAction> tasks = new ArrayList<>();
+            List<File> files = new ArrayList<>();
+            for (File entry : entries) {
+                if (Files.isSymbolicLink(entry.toPath())) {
+                    continue; //links may point back up the tree or outside of it
+                }
+                if (entry.isDirectory()) {
+                    tasks.add(new DirectoryTask(entry));
+                } else if (entry.isFile()) {
+                    files.add(entry);
+                }
+            }
+            for (int i = 0; i < files.size(); i += BATCH_SIZE) {
+                tasks.add(new BatchTask(files.subList(i, Math.min(files.size(), i + BATCH_SIZE))));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private static final class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> files;
+
+        private BatchTask(List<File> files) {
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            Hasher hasher = hashers.get();
+            File[] hashed = new File[files.size()];
+            byte[][][] hex = new byte[TYPES.length][files.size()][];
+            long[][] murmur = new long[TYPES.length][2 * files.size()];
+            long[] hash = new long[2];
+            int count = 0;
+            for (File file : files) {
+                try {
+                    amtBytes.add(hasher.hash(file));
+                } catch (IOException | RuntimeException e) {
+                    errors.add(file + ": " + e.getMessage());
+                    continue;
+                }
+                for (int type = 0; type < TYPES.length; type++) {
+                    hex[type][count] = hasher.hex(type);
+                    Murmur3.hash128(hex[type][count], hash);
+                    murmur[type][2 * count] = hash[0];
+                    murmur[type][2 * count + 1] = hash[1];
+                }
+                hashed[count++] = file;
+            }
+            amtFiles.add(count);
+
+            boolean[] results = new boolean[count];
+            for (int type = 0; type < TYPES.length; type++) {
+                if (filters[type] == null) {
+                    continue;
+                }
+                filters[type].mightContain(murmur[type], count, results);
+                amtProbed.add(count);
+                for (int i = 0; i < count; i++) {
+                    if (results[i]) {
+                        matches.add(new String[]{hashed[i].getPath(), TYPES[type], new String(hex[type][i], StandardCharsets.US_ASCII)});
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The digests and read buffer of one worker thread.
+     */
+    private static final class Hasher {
+        private final MessageDigest[] digests = new MessageDigest[ALGORITHMS.length];
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_SIZE);
+        private final byte[][] results = new byte[ALGORITHMS.length][];
+
+        private Hasher() {
+            try {
+                for (int i = 0; i < ALGORITHMS.length; i++) {
+                    digests[i] = MessageDigest.getInstance(ALGORITHMS[i]);
+                }
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return the number of bytes hashed
+         */
+        private long hash(File file) throws IOException {
+            for (MessageDigest digest : digests) {
+                digest.reset(); //a previous file may have failed halfway
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                long amtRead = 0;
+                if (size <= READ_SIZE) {
+                    buffer.clear();
+                    int amtLastRead = 0;
+                    while (buffer.hasRemaining() && amtLastRead >= 0) {
+                        amtLastRead = channel.read(buffer);
+                    }
+                    buffer.flip();
+                    amtRead = buffer.remaining();
+                    update(buffer);
+                } else {
+                    for (long position = 0; position < size; position += DatabaseReader.CHUNK_SIZE) {
+                        long length = Math.min(DatabaseReader.CHUNK_SIZE, size - position);
+                        update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+                        amtRead += length;
+                    }
+                }
+                for (int i = 0; i < digests.length; i++) {
+                    results[i] = digests[i].digest();
+                }
+                return amtRead;
+            }
+        }
+
+        private void update(ByteBuffer data) {
+            for (int offset = 0; offset < data.limit(); offset += SLICE_SIZE) {
+                ByteBuffer slice = data.slice(offset, Math.min(SLICE_SIZE, data.limit() - offset));
+                for (MessageDigest digest : digests) {
+                    digest.update(slice.position(0));
+                }
+            }
+        }
+
+        private byte[] hex(int type) {
+            byte[] digest = results[type];
+            byte[] hex = new byte[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+                hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xF];
+            }
+            return hex;
+        }
+    }
+}
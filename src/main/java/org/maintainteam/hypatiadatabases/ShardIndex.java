@@ -0,0 +1,181 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+/**
+ * The shards of one filter split by the leading bits of the digest, as Pipeline writes them with -Dhypatia.shards=N.
+ * The index names each shard's file along with its key count, size and SHA-256, so a client can fetch or map only the shards
+ * its lookups fall into, and tell which shards changed since the generation it has.
+ * Layout: magic, version, prefix bits, then the format suffix and, per shard, its key count, size, SHA-256 and file name.
+ */
+public final class ShardIndex {
+    private static final int MAGIC = 0x48595358; //"HYSX"
+    private static final int VERSION = 1;
+    //two hex characters of prefix at most
+    public static final int MAX_BITS = 8;
+
+    private final File directory;
+    private final int bits;
+    private final FilterFormat format;
+    private final long[] entries;
+    private final long[] sizes;
+    private final byte[][] sha256;
+    private final String[] files;
+
+    private ShardIndex(File directory, int bits, FilterFormat format, long[] entries, long[] sizes, byte[][] sha256, String[] files) {
+        this.directory = directory;
+        this.bits = bits;
+        this.format = format;
+        this.entries = entries;
+        this.sizes = sizes;
+        this.sha256 = sha256;
+        this.files = files;
+    }
+
+    /**
+     * @param shards a power of two from 2 to 2^MAX_BITS
+     * @return the number of leading bits that pick one of shards
+     */
+    public static int bits(int shards) {
+        if (shards < 2 || shards > 1 << MAX_BITS || Integer.bitCount(shards) != 1) {
+            throw new IllegalArgumentException("Shard count must be a power of two from 2 to " + (1 << MAX_BITS) + ": " + shards);
+        }
+        return Integer.numberOfTrailingZeros(shards);
+    }
+
+    /**
+     * @param hex the lowercase hex of a digest
+     * @return the shard its leading bits pick
+     */
+    public static int shard(byte[] hex, int bits) {
+        int b = hex[0];
+        int prefix = (b & 0xF) + 9 * (b >>> 6);
+        if (bits > 4) {
+            b = hex[1];
+            prefix = prefix << 4 | ((b & 0xF) + 9 * (b >>> 6));
+            return prefix >>> (8 - bits);
+        }
+        return prefix >>> (4 - bits);
+    }
+
+    /**
+     * Writes the index of shard files, which must all exist next to index already.
+     *
+     * @param entries the key count of each shard
+     */
+    public static void write(File index, int bits, FilterFormat format, long[] entries, File[] shards) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(bits);
+            out.writeUTF(format.suffix);
+            for (int shard = 0; shard < shards.length; shard++) {
+                out.writeLong(entries[shard]);
+                out.writeLong(shards[shard].length());
+                out.write(sha256(shards[shard]));
+                out.writeUTF(shards[shard].getName());
+            }
+        }
+    }
+
+    public static ShardIndex readFrom(File index) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(index + " is not a shard index of version " + VERSION);
+            }
+            int bits = in.readInt();
+            if (bits < 1 || bits > MAX_BITS) {
+                throw new IOException("Invalid shard prefix bits: " + bits);
+            }
+            FilterFormat format = FilterFormat.parse(in.readUTF()).get(0);
+            int shards = 1 << bits;
+            long[] entries = new long[shards];
+            long[] sizes = new long[shards];
+            byte[][] sha256 = new byte[shards][32];
+            String[] files = new String[shards];
+            for (int shard = 0; shard < shards; shard++) {
+                entries[shard] = in.readLong();
+                sizes[shard] = in.readLong();
+                in.readFully(sha256[shard]);
+                files[shard] = in.readUTF();
+            }
+            return new ShardIndex(index.getParentFile(), bits, format, entries, sizes, sha256, files);
+        }
+    }
+
+    /**
+     * @return a mightContain over every shard that reads each shard the first time a lookup falls into it
+     */
+    public Predicate<byte[]> open() {
+        AtomicReferenceArray<Predicate<byte[]>> loaded = new AtomicReferenceArray<>(files.length);
+        return hex -> {
+            int shard = shard(hex, bits);
+            Predicate<byte[]> filter = loaded.get(shard);
+            if (filter == null) {
+                try {
+                    filter = format.read(file(shard));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (!loaded.compareAndSet(shard, null, filter)) {
+                    filter = loaded.get(shard);
+                }
+            }
+            return filter.test(hex);
+        };
+    }
+
+    public int shards() {
+        return files.length;
+    }
+
+    public int bits() {
+        return bits;
+    }
+
+    public File file(int shard) {
+        return new File(directory, files[shard]);
+    }
+
+    public long entries(int shard) {
+        return entries[shard];
+    }
+
+    public long size(int shard) {
+        return sizes[shard];
+    }
+
+    public byte[] sha256(int shard) {
+        return sha256[shard].clone();
+    }
+
+    private static byte[] sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,193 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers for flat arrays of packed digests: words longs per digest, big-endian, compared as unsigned.
+ * This is the layout PackedHashSet stores and the order every sorted binary file is written in.
+ */
+public final class SortedDigests {
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private SortedDigests() {
+    }
+
+    public static int words(int digestLength) {
+        return (digestLength + 7) / 8;
+    }
+
+    public static int compare(long[] a, int indexA, long[] b, int indexB, int words) {
+        int baseA = indexA * words;
+        int baseB = indexB * words;
+        for (int w = 0; w < words; w++) {
+            int c = Long.compareUnsigned(a[baseA + w], b[baseB + w]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Sorts the first count digests of keys in place.
+     */
+    public static void sort(long[] keys, int count, int words) {
+        long[] pivot = new long[words];
+        sort(keys, 0, count - 1, words, pivot);
+    }
+
+    private static void sort(long[] keys, int low, int high, int words, long[] pivot) {
+        while (high - low >= INSERTION_SORT_THRESHOLD) {
+            int middle = (low + high) >>> 1;
+            if (compare(keys, middle, keys, low, words) < 0) swap(keys, middle, low, words);
+            if (compare(keys, high, keys, low, words) < 0) swap(keys, high, low, words);
+            if (compare(keys, high, keys, middle, words) < 0) swap(keys, high, middle, words);
+            System.arraycopy(keys, middle * words, pivot, 0, words);
+
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (compare(keys, i, pivot, 0, words) < 0) i++;
+                while (compare(keys, j, pivot, 0, words) > 0) j--;
+                if (i <= j) {
+                    swap(keys, i, j, words);
+                    i++;
+                    j--;
+                }
+            }
+            //recurse into the smaller half to bound the stack depth
+            if (j - low < high - i) {
+                sort(keys, low, j, words, pivot);
+                low = i;
+            } else {
+                sort(keys, i, high, words, pivot);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && compare(keys, j, keys, j - 1, words) < 0; j--) {
+                swap(keys, j, j - 1, words);
+            }
+        }
+    }
+
+    private static void swap(long[] keys, int a, int b, int words) {
+        int baseA = a * words;
+        int baseB = b * words;
+        for (int w = 0; w < words; w++) {
+            long t = keys[baseA + w];
+            keys[baseA + w] = keys[baseB + w];
+            keys[baseB + w] = t;
+        }
+    }
+
+    /**
+     * Removes adjacent duplicates from the first count sorted digests.
+     *
+     * @return the number of digests left
+     */
+    public static int unique(long[] keys, int count, int words) {
+        if (count == 0) {
+            return 0;
+        }
+        int out = 1;
+        for (int i = 1; i < count; i++) {
+            if (compare(keys, i, keys, out - 1, words) != 0) {
+                if (i != out) {
+                    System.arraycopy(keys, i * words, keys, out * words, words);
+                }
+                out++;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return the index of key in the first count sorted digests, or -(insertion point) - 1 if absent
+     */
+    public static int search(long[] keys, int count, int words, long[] key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int c = compare(keys, middle, key, 0, words);
+            if (c < 0) {
+                low = middle + 1;
+            } else if (c > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @return word of the digest held as lowercase hex in hex, as PackedHashSet packs it
+     */
+    public static long decodeWord(byte[] hex, int word, int digestLength) {
+        int from = word * 16;
+        int to = Math.min(from + 16, digestLength * 2);
+        long value = 0;
+        for (int c = from; c < to; c++) {
+            int b = hex[c];
+            value |= (long) ((b & 0xF) + 9 * (b >>> 6)) << (60 - ((c & 15) << 2));
+        }
+        return value;
+    }
+
+    /**
+     * Writes digest index of keys into hex as digestLength * 2 lowercase hex characters.
+     */
+    public static void encode(long[] keys, int index, int digestLength, byte[] hex) {
+        int base = index * words(digestLength);
+        for (int c = 0; c < digestLength * 2; c++) {
+            hex[c] = HEX_DIGITS[(int) (keys[base + (c >>> 4)] >>> (60 - ((c & 15) << 2))) & 0xF];
+        }
+    }
+
+    /**
+     * Writes digest index of keys as its digestLength raw bytes.
+     */
+    public static void write(DataOutputStream out, long[] keys, int index, int digestLength) throws IOException {
+        int base = index * words(digestLength);
+        int remaining = digestLength;
+        for (int w = 0; remaining > 0; w++) {
+            long word = keys[base + w];
+            if (remaining >= 8) {
+                out.writeLong(word);
+                remaining -= 8;
+            } else {
+                for (int b = 0; b < remaining; b++) {
+                    out.writeByte((int) (word >>> (56 - 8 * b)));
+                }
+                remaining = 0;
+            }
+        }
+    }
+
+    /**
+     * Reads one digest of digestLength raw bytes into keys at index.
+     */
+    public static void read(DataInputStream in, long[] keys, int index, int digestLength) throws IOException {
+        int base = index * words(digestLength);
+        int remaining = digestLength;
+        for (int w = 0; remaining > 0; w++) {
+            if (remaining >= 8) {
+                keys[base + w] = in.readLong();
+                remaining -= 8;
+            } else {
+                long word = 0;
+                for (int b = 0; b < remaining; b++) {
+                    word |= (long) in.readUnsignedByte() << (56 - 8 * b);
+                }
+                keys[base + w] = word;
+                remaining = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,523 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Which source files list each digest, looked up by the lowercase hex of the digest.
+ * A BBHash minimal perfect hash maps every distinct digest to a slot: each level is a bit array GAMMA times the size of the keys
+ * not yet placed, a key is placed at the first level where no other key of that level hashed to its position,
+ * and its slot is the rank of that bit over all levels. That costs about 3.7 bits per digest.
+ * Each slot holds a 16-bit fingerprint of its digest, so a digest that was never listed is told apart but for one in 65536,
+ * and the id of its combination: one of the distinct sets of sources that list a digest, packed in as few bits as their count needs.
+ * Every combination carries how many digests it has, so per source and overlap counts come from the index alone.
+ * Layout: magic, version, the source names, the combinations and their digest counts, the digest count,
+ * the levels of the hash, then the packed combination ids and the fingerprints.
+ */
+public final class SourceIndex {
+    private static final int MAGIC = 0x48595341; //"HYSA"
+    private static final int VERSION = 1;
+    private static final double GAMMA = 2.0;
+    private static final int MAX_LEVELS = 64;
+    private static final int[] DIGEST_LENGTHS = {16, 20, 32};
+    //source ids are appended to the digests as two bytes while sorting
+    public static final int MAX_SOURCES = 1 << 16;
+
+    private final String[] sources;
+    private final int[][] combos;
+    private final long[] comboCounts;
+    private final int entries;
+    private final long[][] levels;
+    //per level, the rank over all levels at the start of every block of 8 words
+    private final int[][] ranks;
+    private final int comboBits;
+    private final long[] comboIds;
+    private final short[] fingerprints;
+
+    private SourceIndex(String[] sources, int[][] combos, long[] comboCounts, int entries, long[][] levels, int comboBits, long[] comboIds, short[] fingerprints) {
+        this.sources = sources;
+        this.combos = combos;
+        this.comboCounts = comboCounts;
+        this.entries = entries;
+        this.levels = levels;
+        this.ranks = new int[levels.length][];
+        int placed = 0;
+        for (int level = 0; level < levels.length; level++) {
+            ranks[level] = ranks(levels[level], placed);
+            placed += popCount(levels[level]);
+        }
+        this.comboBits = comboBits;
+        this.comboIds = comboIds;
+        this.fingerprints = fingerprints;
+    }
+
+    /**
+     * Collects which source lists each digest while the corpus is read, then builds the index from them.
+     * The id of the source is appended to the digest as two more bytes, so sorting the combined keys through ExternalDedupe
+     * drops a source's repeats of a digest and brings every source of a digest together.
+     */
+    public static final class Collector {
+        private final String[] sources;
+        private final ExternalDedupe[] tagged = new ExternalDedupe[DIGEST_LENGTHS.length];
+        private final ParallelIngest.PerThread<byte[][]> keys = new ParallelIngest.PerThread<>(() -> {
+            byte[][] keys = new byte[DIGEST_LENGTHS.length][];
+            for (int type = 0; type < DIGEST_LENGTHS.length; type++) {
+                keys[type] = new byte[(DIGEST_LENGTHS[type] + 2) * 2];
+            }
+            return keys;
+        });
+        private final Map<BitSet, Integer> comboIndex = new HashMap<>();
+        private final List<BitSet> comboSets = new ArrayList<>();
+        private long[] comboCounts = new long[16];
+
+        /**
+         * @param sources the name of each source, by id
+         * @param budget bytes the sorted runs of all workers may take together
+         */
+        public Collector(String[] sources, long budget, File spillDirectory) {
+            if (sources.length > MAX_SOURCES) {
+                throw new IllegalArgumentException("At most " + MAX_SOURCES + " sources can be attributed: " + sources.length);
+            }
+            this.sources = sources;
+            for (int type = 0; type < DIGEST_LENGTHS.length; type++) {
+                tagged[type] = new ExternalDedupe(DIGEST_LENGTHS[type] + 2, budget / DIGEST_LENGTHS.length, spillDirectory);
+            }
+        }
+
+        /**
+         * Records that source lists the lowercase hex digest hex. Safe to call from several threads at once.
+         */
+        public void add(byte[] hex, int source) {
+            int type = hex.length == 32 ? 0 : hex.length == 40 ? 1 : 2;
+            byte[] key = keys.get()[type];
+            System.arraycopy(hex, 0, key, 0, hex.length);
+            for (int c = 0; c < 4; c++) {
+                key[hex.length + c] = (byte) Character.forDigit((source >>> (12 - 4 * c)) & 0xF, 16);
+            }
+            tagged[type].add(key);
+        }
+
+        /**
+         * Builds the index. Call once, after every worker is done adding.
+         * The first level of the hash is filled by streaming the sorted digests twice, once to find the collisions and once to place
+         * the digests that had none; only the digests that collided are held in memory, for the levels after it.
+         */
+        public SourceIndex build() throws IOException {
+            ExternalDedupe.RunFile[] runs = new ExternalDedupe.RunFile[DIGEST_LENGTHS.length];
+            for (int type = 0; type < DIGEST_LENGTHS.length; type++) {
+                runs[type] = tagged[type].finish();
+            }
+            long[] amtDigests = {0};
+            forEachDigest(runs, (hex, sources) -> {
+                int combo = combo(sources);
+                comboCounts[combo]++;
+                amtDigests[0]++;
+            });
+            if (amtDigests[0] > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Too many digests to attribute: " + amtDigests[0]);
+            }
+            int entries = (int) amtDigests[0];
+            int comboBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(0, comboSets.size() - 1)));
+            long[] comboIds = new long[(int) (((long) entries * comboBits + 63) >>> 6)];
+            short[] fingerprints = new short[entries];
+            List<long[]> levels = new ArrayList<>();
+
+            long[] bits = new long[levelWords(entries)];
+            long[] collided = new long[bits.length];
+            long[] hash = new long[2];
+            forEachDigest(runs, (hex, sources) -> {
+                Murmur3.hash128(hex, hash);
+                mark(bits, collided, position(hash[0], hash[1], 0, bits.length));
+            });
+            Pending pending = new Pending();
+            if (entries > 0) {
+                clear(bits, collided);
+                int[] rank = ranks(bits, 0);
+                forEachDigest(runs, (hex, sources) -> {
+                    Murmur3.hash128(hex, hash);
+                    int position = position(hash[0], hash[1], 0, bits.length);
+                    if (isSet(bits, position)) {
+                        int slot = rank(bits, rank, position);
+                        fingerprints[slot] = fingerprint(hash[1]);
+                        setComboId(comboIds, comboBits, slot, comboIndex.get(sources));
+                    } else {
+                        pending.add(hash[0], hash[1], comboIndex.get(sources));
+                    }
+                });
+                levels.add(bits);
+            }
+            for (ExternalDedupe.RunFile run : runs) {
+                Files.deleteIfExists(run.file.toPath());
+            }
+
+            int placed = entries - pending.count;
+            while (pending.count > 0) {
+                if (levels.size() == MAX_LEVELS) {
+                    throw new IllegalStateException(pending.count + " digests left unplaced after " + MAX_LEVELS + " levels");
+                }
+                int level = levels.size();
+                long[] levelBits = new long[levelWords(pending.count)];
+                long[] levelCollided = new long[levelBits.length];
+                for (int i = 0; i < pending.count; i++) {
+                    mark(levelBits, levelCollided, position(pending.h1[i], pending.h2[i], level, levelBits.length));
+                }
+                clear(levelBits, levelCollided);
+                int[] rank = ranks(levelBits, placed);
+                int amtKept = 0;
+                for (int i = 0; i < pending.count; i++) {
+                    int position = position(pending.h1[i], pending.h2[i], level, levelBits.length);
+                    if (isSet(levelBits, position)) {
+                        int slot = rank(levelBits, rank, position);
+                        fingerprints[slot] = fingerprint(pending.h2[i]);
+                        setComboId(comboIds, comboBits, slot, pending.combo[i]);
+                    } else {
+                        pending.h1[amtKept] = pending.h1[i];
+                        pending.h2[amtKept] = pending.h2[i];
+                        pending.combo[amtKept] = pending.combo[i];
+                        amtKept++;
+                    }
+                }
+                placed += pending.count - amtKept;
+                pending.count = amtKept;
+                levels.add(levelBits);
+            }
+
+            int[][] combos = new int[comboSets.size()][];
+            for (int combo = 0; combo < combos.length; combo++) {
+                combos[combo] = comboSets.get(combo).stream().toArray();
+            }
+            return new SourceIndex(sources, combos, Arrays.copyOf(comboCounts, combos.length), entries, levels.toArray(new long[0][]),
+                    comboBits, comboIds, fingerprints);
+        }
+
+        private int combo(BitSet sources) {
+            Integer combo = comboIndex.get(sources);
+            if (combo == null) {
+                combo = comboSets.size();
+                BitSet copy = (BitSet) sources.clone();
+                comboIndex.put(copy, combo);
+                comboSets.add(copy);
+                if (combo == comboCounts.length) {
+                    comboCounts = Arrays.copyOf(comboCounts, combo * 2);
+                }
+            }
+            return combo;
+        }
+    }
+
+    /**
+     * The hashes and combination ids of the digests a level left for the next.
+     */
+    private static final class Pending {
+        private long[] h1 = new long[1024];
+        private long[] h2 = new long[1024];
+        private int[] combo = new int[1024];
+        private int count = 0;
+
+        private void add(long hash1, long hash2, int comboId) {
+            if (count == h1.length) {
+                h1 = Arrays.copyOf(h1, count * 2);
+                h2 = Arrays.copyOf(h2, count * 2);
+                combo = Arrays.copyOf(combo, count * 2);
+            }
+            h1[count] = hash1;
+            h2[count] = hash2;
+            combo[count] = comboId;
+            count++;
+        }
+    }
+
+    /**
+     * Calls action with the lowercase hex of every digest in the sorted tagged runs, md5 first, and the ids of the sources that list it.
+     * Both arguments are reused between calls and must not be retained.
+     */
+    private static void forEachDigest(ExternalDedupe.RunFile[] runs, BiConsumer<byte[], BitSet> action) {
+        for (int type = 0; type < runs.length; type++) {
+            int digestLength = DIGEST_LENGTHS[type];
+            byte[] hex = new byte[digestLength * 2];
+            byte[] previous = new byte[digestLength * 2];
+            BitSet sources = new BitSet();
+            boolean[] started = {false};
+            ExternalDedupe.forEachKey(runs[type], digestLength + 2, key -> {
+                SortedDigests.encode(key, 0, digestLength, hex);
+                if (started[0] && !Arrays.equals(hex, previous)) {
+                    action.accept(previous, sources);
+                    sources.clear();
+                }
+                System.arraycopy(hex, 0, previous, 0, hex.length);
+                started[0] = true;
+                int source = (int) (key[digestLength / 8] >>> (56 - 8 * (digestLength % 8))) & 0xFF;
+                int low = digestLength + 1;
+                sources.set(source << 8 | (int) (key[low / 8] >>> (56 - 8 * (low % 8))) & 0xFF);
+            });
+            if (started[0]) {
+                action.accept(previous, sources);
+            }
+        }
+    }
+
+    /**
+     * @return the ids of the sources that list the lowercase hex digest hex, in ascending order, or none if it is not in the index
+     */
+    public int[] sources(byte[] hex) {
+        long[] hash = new long[2];
+        Murmur3.hash128(hex, hash);
+        int slot = slot(hash[0], hash[1]);
+        if (slot < 0 || fingerprints[slot] != fingerprint(hash[1])) {
+            return new int[0];
+        }
+        return combos[comboId(slot)].clone();
+    }
+
+    private int slot(long h1, long h2) {
+        for (int level = 0; level < levels.length; level++) {
+            long[] bits = levels[level];
+            int position = position(h1, h2, level, bits.length);
+            if (isSet(bits, position)) {
+                return rank(bits, ranks[level], position);
+            }
+        }
+        return -1;
+    }
+
+    private int comboId(int slot) {
+        long bit = (long) slot * comboBits;
+        int word = (int) (bit >>> 6);
+        int offset = (int) (bit & 63);
+        long value = comboIds[word] >>> offset;
+        if (offset + comboBits > 64) {
+            value |= comboIds[word + 1] << (64 - offset);
+        }
+        return (int) (value & ((1L << comboBits) - 1));
+    }
+
+    private static void setComboId(long[] comboIds, int comboBits, int slot, int combo) {
+        long bit = (long) slot * comboBits;
+        int word = (int) (bit >>> 6);
+        int offset = (int) (bit & 63);
+        comboIds[word] |= (long) combo << offset;
+        if (offset + comboBits > 64) {
+            comboIds[word + 1] |= (long) combo >>> (64 - offset);
+        }
+    }
+
+    private static int position(long h1, long h2, int level, int words) {
+        return (int) Long.remainderUnsigned(Murmur3.fmix64(h1 + 0x9e3779b97f4a7c15L * level ^ h2), (long) words * Long.SIZE);
+    }
+
+    private static short fingerprint(long h2) {
+        return (short) (h2 >>> 48);
+    }
+
+    private static int levelWords(int keys) {
+        return (int) Math.max(1, (long) Math.ceil(GAMMA * keys / Long.SIZE));
+    }
+
+    private static boolean isSet(long[] bits, int position) {
+        return (bits[position >>> 6] & (1L << position)) != 0;
+    }
+
+    /**
+     * Sets position in bits, or in collided if it was set already.
+     */
+    private static void mark(long[] bits, long[] collided, int position) {
+        if (isSet(bits, position)) {
+            collided[position >>> 6] |= 1L << position;
+        } else {
+            bits[position >>> 6] |= 1L << position;
+        }
+    }
+
+    private static void clear(long[] bits, long[] collided) {
+        for (int w = 0; w < bits.length; w++) {
+            bits[w] &= ~collided[w];
+        }
+    }
+
+    private static int[] ranks(long[] bits, int base) {
+        int[] ranks = new int[(bits.length + 7) >>> 3];
+        int rank = base;
+        for (int w = 0; w < bits.length; w++) {
+            if ((w & 7) == 0) {
+                ranks[w >>> 3] = rank;
+            }
+            rank += Long.bitCount(bits[w]);
+        }
+        return ranks;
+    }
+
+    private static int rank(long[] bits, int[] ranks, int position) {
+        int word = position >>> 6;
+        int rank = ranks[word >>> 3];
+        for (int w = word & ~7; w < word; w++) {
+            rank += Long.bitCount(bits[w]);
+        }
+        return rank + Long.bitCount(bits[word] & ((1L << position) - 1));
+    }
+
+    private static int popCount(long[] bits) {
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    public int amtSources() {
+        return sources.length;
+    }
+
+    public String source(int id) {
+        return sources[id];
+    }
+
+    /**
+     * @return the number of distinct digests in the index
+     */
+    public int entries() {
+        return entries;
+    }
+
+    /**
+     * @return the number of distinct sets of sources that list a digest
+     */
+    public int combinations() {
+        return combos.length;
+    }
+
+    /**
+     * @return how many digests each source lists, by id
+     */
+    public long[] listed() {
+        long[] listed = new long[sources.length];
+        for (int combo = 0; combo < combos.length; combo++) {
+            for (int source : combos[combo]) {
+                listed[source] += comboCounts[combo];
+            }
+        }
+        return listed;
+    }
+
+    /**
+     * @return how many digests each source lists that no other source does, by id
+     */
+    public long[] exclusive() {
+        long[] exclusive = new long[sources.length];
+        for (int combo = 0; combo < combos.length; combo++) {
+            if (combos[combo].length == 1) {
+                exclusive[combos[combo][0]] += comboCounts[combo];
+            }
+        }
+        return exclusive;
+    }
+
+    /**
+     * @return how many of the digests of source each source lists as well, by id
+     */
+    public long[] overlaps(int source) {
+        long[] overlaps = new long[sources.length];
+        for (int combo = 0; combo < combos.length; combo++) {
+            if (Arrays.binarySearch(combos[combo], source) >= 0) {
+                for (int other : combos[combo]) {
+                    overlaps[other] += comboCounts[combo];
+                }
+            }
+        }
+        return overlaps;
+    }
+
+    /**
+     * Writes the index. The stream is flushed, not closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        dout.writeInt(MAGIC);
+        dout.writeInt(VERSION);
+        dout.writeInt(sources.length);
+        for (String source : sources) {
+            dout.writeUTF(source);
+        }
+        dout.writeInt(combos.length);
+        for (int combo = 0; combo < combos.length; combo++) {
+            dout.writeLong(comboCounts[combo]);
+            dout.writeInt(combos[combo].length);
+            for (int source : combos[combo]) {
+                dout.writeShort(source);
+            }
+        }
+        dout.writeInt(entries);
+        dout.writeInt(levels.length);
+        for (long[] bits : levels) {
+            dout.writeInt(bits.length);
+            for (long word : bits) {
+                dout.writeLong(word);
+            }
+        }
+        dout.writeInt(comboBits);
+        for (long word : comboIds) {
+            dout.writeLong(word);
+        }
+        for (short fingerprint : fingerprints) {
+            dout.writeShort(fingerprint);
+        }
+        dout.flush();
+    }
+
+    public static SourceIndex readFrom(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        if (din.readInt() != MAGIC) {
+            throw new IOException("Not a source index");
+        }
+        int version = din.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported source index version " + version);
+        }
+        String[] sources = new String[din.readInt()];
+        for (int source = 0; source < sources.length; source++) {
+            sources[source] = din.readUTF();
+        }
+        int[][] combos = new int[din.readInt()][];
+        long[] comboCounts = new long[combos.length];
+        for (int combo = 0; combo < combos.length; combo++) {
+            comboCounts[combo] = din.readLong();
+            combos[combo] = new int[din.readInt()];
+            for (int i = 0; i < combos[combo].length; i++) {
+                combos[combo][i] = din.readUnsignedShort();
+            }
+        }
+        int entries = din.readInt();
+        long[][] levels = new long[din.readInt()][];
+        for (int level = 0; level < levels.length; level++) {
+            levels[level] = new long[din.readInt()];
+            for (int w = 0; w < levels[level].length; w++) {
+                levels[level][w] = din.readLong();
+            }
+        }
+        int comboBits = din.readInt();
+        if (comboBits < 1 || comboBits > 32) {
+            throw new IOException("Invalid source combination width: " + comboBits);
+        }
+        long[] comboIds = new long[(int) (((long) entries * comboBits + 63) >>> 6)];
+        for (int w = 0; w < comboIds.length; w++) {
+            comboIds[w] = din.readLong();
+        }
+        short[] fingerprints = new short[entries];
+        for (int i = 0; i < entries; i++) {
+            fingerprints[i] = din.readShort();
+        }
+        return new SourceIndex(sources, combos, comboCounts, entries, levels, comboBits, comboIds, fingerprints);
+    }
+}
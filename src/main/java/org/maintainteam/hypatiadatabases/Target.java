@@ -0,0 +1,149 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A product Pipeline builds: which database files feed it, which hashes it leaves out, how its filters are sized and what they are called.
+ * Targets with the same sources and exclusions share their digest sets, so building several of them costs one parse and one set of hashes.
+ * Select them with -Dhypatia.targets=hypatia,nerd; App builds only hypatia by default.
+ */
+public enum Target {
+    /**
+     * The hypatia-*.bin databases of the stable branch: every format of -Dhypatia.filters, sized to the exact key count,
+     * with a delta against each production bloom filter.
+     */
+    HYPATIA("hypatia", ".bin", false, FilterFormat.parse(System.getProperty("hypatia.filters", FilterFormat.DEFAULT_FORMATS)), null,
+            List.of("", "../extras/"), "../exclusions/", true, "hypatia-md5-bloom.bin"),
+    /**
+     * The nerd-*.ai databases: Guava bloom filters of a fixed capacity, so their size stays put as the lists grow.
+     * Their bloom filters carry no format suffix, as the clients that load them predate the other formats.
+     */
+    NERD("nerd", ".ai", true, List.of(FilterFormat.BLOOM), new long[]{7600000, 100000, 2200000, 4500000},
+            List.of("", "../extras/"), "../exclusions/", false, "nerd-md5.bin");
+
+    public static final String DEFAULT_TARGETS = "hypatia";
+    public static final String[] TYPES = {"md5", "sha1", "sha256", "domains"};
+    private static final long EXTENDED_CAPACITY_MD5 = 52000000;
+
+    //Set -Dhypatia.autoSize=true to size the filters of fixed capacity targets to their key count as well,
+    //or to a HyperLogLog estimate of it where their filters are filled without an exact set
+    static final boolean AUTO_SIZE = Boolean.getBoolean("hypatia.autoSize");
+
+    public final String name;
+    private final String extension;
+    //whether the bloom filters are named without their format suffix
+    private final boolean bareBloom;
+    private final List<FilterFormat> formats;
+    //md5, sha1, sha256 and domains, or null to size every filter to its key count
+    private final long[] capacities;
+    private final List<String> sources;
+    private final String exclusions;
+    public final boolean deltas;
+    //the production md5 bloom filter whose hashes extended mode leaves out, or null if it is not built in extended mode
+    public final String extendedBase;
+
+    Target(String name, String extension, boolean bareBloom, List<FilterFormat> formats, long[] capacities,
+           List<String> sources, String exclusions, boolean deltas, String extendedBase) {
+        this.name = name;
+        this.extension = extension;
+        this.bareBloom = bareBloom;
+        this.formats = formats;
+        this.capacities = capacities;
+        this.sources = sources;
+        this.exclusions = exclusions;
+        this.deltas = deltas;
+        this.extendedBase = extendedBase;
+    }
+
+    /**
+     * @param type one of TYPES
+     * @param suffix the FilterFormat suffix, or "index" for the DomainIndex
+     * @return such as hypatia-md5-bloom.bin or nerd-md5.ai
+     */
+    String fileName(String type, String suffix) {
+        boolean bare = bareBloom && suffix.equals(FilterFormat.BLOOM.suffix);
+        return name + "-" + type + (bare ? "" : "-" + suffix) + extension;
+    }
+
+    List<FilterFormat> formats() {
+        return formats;
+    }
+
+    /**
+     * Directories database files are read from, relative to the raw directory. The extras are skipped in extended mode.
+     */
+    public List<String> sources() {
+        return sources;
+    }
+
+    /**
+     * Directory of the allowlists whose hashes are left out, relative to the raw directory.
+     */
+    public String exclusions() {
+        return exclusions;
+    }
+
+    /**
+     * @return the number of keys the filter of type is built for, with the md5 filter of extended mode always at its own capacity
+     */
+    public long capacity(int type, long keys, boolean extendedMode) {
+        if (AUTO_SIZE) {
+            return keys;
+        }
+        if (type == 0 && extendedMode) {
+            return EXTENDED_CAPACITY_MD5;
+        }
+        return capacities == null ? keys : capacities[type];
+    }
+
+    /**
+     * Whether the filters keep the geometry of the production generation when they can, which only exactly sized ones do.
+     */
+    public boolean sticky() {
+        return capacities == null;
+    }
+
+    /**
+     * Whether its filters can be filled as the files are read, without an exact set of the hashes behind them:
+     * only fixed capacities and formats whose size does not depend on the key count allow it.
+     */
+    public boolean streamable() {
+        if (capacities == null) {
+            return false;
+        }
+        for (FilterFormat format : formats()) {
+            if (!format.streamable) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param targets comma separated names, such as hypatia,nerd
+     */
+    public static List<Target> parse(String targets) {
+        List<Target> selected = new ArrayList<>();
+        for (String name : targets.split(",")) {
+            name = name.trim().toLowerCase(Locale.ROOT);
+            if (name.isEmpty()) {
+                continue;
+            }
+            Target target = null;
+            for (Target candidate : values()) {
+                if (candidate.name.equals(name)) {
+                    target = candidate;
+                }
+            }
+            if (target == null) {
+                throw new IllegalArgumentException("Unknown target: " + name);
+            }
+            if (!selected.contains(target)) {
+                selected.add(target);
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,103 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Reloads every filter TargetWriter wrote for a Target the way clients do and checks it against the keys it was written from.
+ * Every key is looked up again, as a false negative would mean a client silently misses a listed hash,
+ * then random keys that were never listed are probed to measure the false positive rate against the one the filter expects.
+ * Either failing fails the run. An excluded hash that matches is only reported, as it may be a false positive of the filter.
+ */
+final class TargetVerifier {
+    private static final int[] DIGEST_LENGTHS = {16, 20, 32};
+
+    private final File directory;
+    private final int shardBits;
+    private final HtmlReport report;
+
+    /**
+     * @param shardBits the prefix bits the hash filters were also sharded by, or 0
+     */
+    TargetVerifier(File directory, int shardBits, HtmlReport report) {
+        this.directory = directory;
+        this.shardBits = shardBits;
+        this.report = report;
+    }
+
+    /**
+     * @param keys the keys of each type as TargetWriter returned them, null for a filter filled as the files were read
+     * @param estimates the distinct hashes of each type such a filter holds, or null
+     */
+    void verify(Target target, FilterFormat.Keys[] keys, long[] estimates, Exclusions exclusions) {
+        System.out.println("Verifying " + target.name + ":");
+        report.heading("Filters of " + target.name);
+        report.header("Filter", "Entries", "Random probes matched", "Measured false positive rate", "Expected");
+        List<String> matchedExclusions = new ArrayList<>();
+        for (int type = 0; type < Target.TYPES.length; type++) {
+            int hexLength = type < 3 ? DIGEST_LENGTHS[type] * 2 : 0;
+            for (FilterFormat format : target.formats()) {
+                File file = new File(directory, target.fileName(Target.TYPES[type], format.suffix));
+                FilterFormat.Reader reader;
+                try {
+                    reader = format.read(file);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to read back " + file, e);
+                }
+                verifyFilter(file.getName(), format, reader, reader.expectedFpp(), hexLength, keys[type], keys[type] == null ? estimates[type] : keys[type].size());
+                if (type < 3 && shardBits > 0) {
+                    File index = new File(directory, target.fileName(Target.TYPES[type], format.suffix + "-shards"));
+                    try {
+                        //shards are sized like the whole filter, so they share its expected rate
+                        verifyFilter(index.getName(), format, ShardIndex.readFrom(index).open(), reader.expectedFpp(), hexLength, keys[type], keys[type].size());
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Failed to read back " + index, e);
+                    }
+                }
+                if (type < 3) {
+                    for (String excluded : exclusions.matching(hexLength, reader)) {
+                        matchedExclusions.add(Target.TYPES[type] + " " + format.suffix + ": Found excluded hash " + excluded);
+                    }
+                }
+            }
+        }
+        for (String matched : matchedExclusions) {
+            System.out.println("\t" + matched);
+            report.line(matched);
+        }
+        System.out.println(matchedExclusions.isEmpty() ? "\tNo exclusions found :)" : "\tExclusions were found!");
+        report.line(matchedExclusions.isEmpty() ? "No exclusions found :)" : "Exclusions were found!");
+    }
+
+    /**
+     * @param hexLength the length of the digests filter holds, or 0 for domains
+     * @param keys the keys filter was written from, or null for a streamed filter, whose false negatives cannot be checked
+     * @param entries the number of keys, estimated for a streamed filter
+     */
+    private void verifyFilter(String name, FilterFormat format, Predicate<byte[]> filter, double expectedFpp, int hexLength, FilterFormat.Keys keys, long entries) {
+        if (keys != null) {
+            long amtMissing = Verification.falseNegatives(filter, keys);
+            if (amtMissing != 0) {
+                throw new IllegalStateException(name + ": " + amtMissing + " of " + keys.size() + " entries missing");
+            }
+        }
+        long probes = Verification.PROBES;
+        long amtMatched = probes == 0 ? 0 : Verification.falsePositives(filter, hexLength, probes);
+        long limit = Verification.maxFalsePositives(expectedFpp, probes);
+        String measured = String.format("%.2e", (double) amtMatched / Math.max(probes, 1));
+        System.out.println("\t" + name + ": " + (keys == null ? "about " + entries + " entries, streamed so false negatives not checked, "
+                : "no false negatives in " + entries + " entries, ") + amtMatched + " of " + probes
+                + " random probes matched, measured " + measured + ", expected " + String.format("%.2e", expectedFpp));
+        report.row(name, keys == null ? "about " + entries : entries, amtMatched + " of " + probes, measured, String.format("%.2e", expectedFpp));
+        if (amtMatched > limit && !Verification.checksFpp(format, entries)) {
+            System.out.println("\t\tmore than the " + limit + " allowed, reported only as " + format.suffix + " filters of under "
+                    + Verification.MIN_CHECKED_GUAVA_ENTRIES + " entries match more than their expected rate");
+        } else if (amtMatched > limit) {
+            throw new IllegalStateException(name + ": " + amtMatched + " of " + probes + " random probes matched, more than the " + limit
+                    + " allowed at an expected false positive rate of " + expectedFpp);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Writes the files of a Target into the raw directory: a filter per type and format, their shards, the domain index,
+ * and the deltas from the production generation. TargetVerifier reads them back once they are all written.
+ */
+final class TargetWriter {
+    private final File directory;
+    //The files clients have now. Bloom filters keep their geometry while it fits, and a delta is written from each of them
+    private final File production;
+    private final boolean extendedMode;
+    private final double fpp;
+    private final int shardBits;
+    private final Set<String> domains;
+
+    /**
+     * @param shardBits the prefix bits to also shard every hash filter by, or 0 to not shard them
+     * @param domains the listed domains, read once every target is written
+     */
+    TargetWriter(File directory, File production, boolean extendedMode, double fpp, int shardBits, Set<String> domains) {
+        this.directory = directory;
+        this.production = production;
+        this.extendedMode = extendedMode;
+        this.fpp = fpp;
+        this.shardBits = shardBits;
+        this.domains = domains;
+    }
+
+    /**
+     * Writes every file of target.
+     *
+     * @param keys the md5, sha1 and sha256 keys, or null if the filters were filled as the files were read
+     * @param streamed those filled filters by file name, or null
+     * @param estimates the distinct hashes of each type the filled filters hold, or null
+     * @return the keys each filter was written from, with the domains, and null for a filled filter
+     */
+    FilterFormat.Keys[] write(Target target, FilterFormat.Keys[] keys, Map<String, FilterFormat.Builder> streamed, long[] estimates) {
+        System.out.println("Writing " + target.name + ":");
+        FilterFormat.Keys[] written = keys == null ? new FilterFormat.Keys[Target.TYPES.length] : Arrays.copyOf(keys, Target.TYPES.length);
+        written[3] = FilterFormat.Keys.of(domains);
+        if (extendedMode) {
+            if (keys == null) {
+                throw new IllegalArgumentException(target.name + ": extended mode needs the exact md5 hashes to leave out those production holds");
+            }
+            written[0] = withoutProduction(target, keys[0]);
+        }
+
+        for (int type = 0; type < Target.TYPES.length; type++) {
+            for (FilterFormat format : target.formats()) {
+                if (written[type] == null) {
+                    writeStreamed(target, type, format, streamed, estimates[type]);
+                    continue;
+                }
+                writeFilter(target, type, format, written[type]);
+                if (type < 3 && shardBits > 0) {
+                    writeShards(target, type, format, written[type]);
+                }
+            }
+        }
+        writeDomainIndex(target);
+
+        //production holds the main databases, which an extended build neither patches nor inherits the geometry of
+        if (target.deltas && !extendedMode && production.exists() && target.formats().contains(FilterFormat.BLOOM)) {
+            System.out.println("Writing deltas from " + production + ":");
+            for (String type : Target.TYPES) {
+                String name = target.fileName(type, FilterFormat.BLOOM.suffix);
+                writeDelta(new File(production, name), new File(directory, name));
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @return the md5 hashes of keys that the production bloom filter of target does not hold, filtered as they are walked
+     */
+    private FilterFormat.Keys withoutProduction(Target target, FilterFormat.Keys keys) {
+        File existingDatabase = new File(production, target.extendedBase);
+        if (!existingDatabase.exists()) {
+            return keys;
+        }
+        ConcurrentBloomFilter existing;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(existingDatabase), 1 << 16)) {
+            existing = ConcurrentBloomFilter.readFrom(in);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return keys;
+        }
+        LongAdder amtKept = new LongAdder();
+        keys.forEach(hex -> {
+            if (!existing.mightContain(hex)) amtKept.increment();
+        });
+        int size = amtKept.intValue();
+        System.out.println("\tLoaded " + existing.approximateElementCount() + " entries from " + existingDatabase.getName() + ", "
+                + (keys.size() - size) + " md5 hashes already in it were left out");
+        return new FilterFormat.Keys() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public void forEach(Consumer<byte[]> action) {
+                keys.forEach(hex -> {
+                    if (!existing.mightContain(hex)) action.accept(hex);
+                });
+            }
+        };
+    }
+
+    /**
+     * Writes a filter that was filled as the files were read.
+     */
+    private void writeStreamed(Target target, int type, FilterFormat format, Map<String, FilterFormat.Builder> streamed, long estimate) {
+        File file = new File(directory, target.fileName(Target.TYPES[type], format.suffix));
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            streamed.get(file.getName()).writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write " + file, e);
+        }
+        System.out.println("\t" + file.getName() + ": about " + estimate + " entries, " + file.length() + " bytes, "
+                + String.format("%.1f", file.length() * 8.0 / Math.max(estimate, 1)) + " bits per entry");
+    }
+
+    private void writeFilter(Target target, int type, FilterFormat format, FilterFormat.Keys keys) {
+        String name = target.fileName(Target.TYPES[type], format.suffix);
+        File file = new File(directory, name);
+        long capacity = target.capacity(type, keys.size(), extendedMode);
+        try {
+            format.write(keys, capacity, fpp, previous(target, name), file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write " + file, e);
+        }
+        String fill = capacity == keys.size() ? "" : ", " + String.format("%.1f", 100.0 * keys.size() / Math.max(capacity, 1)) + "% of capacity " + capacity;
+        System.out.println("\t" + file.getName() + ": " + keys.size() + " entries, " + file.length() + " bytes, "
+                + String.format("%.1f", file.length() * 8.0 / Math.max(keys.size(), 1)) + " bits per entry" + fill);
+    }
+
+    /**
+     * @return the production file a filter of target keeps the geometry of, or null to size it from scratch
+     */
+    private File previous(Target target, String name) {
+        return target.sticky() && !extendedMode ? new File(production, name) : null;
+    }
+
+    /**
+     * Writes the filter of type again as shards and their index. Every shard is filled in the same pass over the keys
+     * and they are written concurrently. Domains are not sharded, as clients look them up by their parents as well.
+     */
+    private void writeShards(Target target, int type, FilterFormat format, FilterFormat.Keys keys) {
+        int shards = 1 << shardBits;
+        AtomicIntegerArray counts = new AtomicIntegerArray(shards);
+        keys.forEach(key -> counts.incrementAndGet(ShardIndex.shard(key, shardBits)));
+        long capacity = target.capacity(type, keys.size(), extendedMode);
+        File index = new File(directory, target.fileName(Target.TYPES[type], format.suffix + "-shards"));
+        File[] files = new File[shards];
+        long[] entries = new long[shards];
+        FilterFormat.Builder[] builders = new FilterFormat.Builder[shards];
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                String name = target.fileName(Target.TYPES[type], format.suffix + "-" + String.format("%02x", shard));
+                files[shard] = new File(directory, name);
+                entries[shard] = counts.get(shard);
+                //fixed capacities are split evenly, as digests spread evenly over their leading bits
+                long shardCapacity = capacity == keys.size() ? entries[shard] : (capacity + shards - 1) / shards;
+                builders[shard] = format.builder(counts.get(shard), shardCapacity, fpp, previous(target, name));
+            }
+            keys.forEach(key -> builders[ShardIndex.shard(key, shardBits)].put(key));
+            ParallelIngest.forEachPart(shards, shard -> {
+                try (FileOutputStream out = new FileOutputStream(files[shard])) {
+                    builders[shard].writeTo(out);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            ShardIndex.write(index, shardBits, format, entries, files);
+        } catch (IOException | UncheckedIOException e) {
+            throw new IllegalStateException("Failed to write the shards of " + index.getName(), e);
+        }
+
+        long bytes = 0;
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int shard = 0; shard < shards; shard++) {
+            bytes += files[shard].length();
+            min = Math.min(min, entries[shard]);
+            max = Math.max(max, entries[shard]);
+        }
+        System.out.println("\t" + index.getName() + ": " + keys.size() + " entries over " + shards + " shards of "
+                + min + " to " + max + " entries, " + bytes + " bytes");
+    }
+
+    /**
+     * Writes the domain index, then reads it back and checks that every listed domain and a subdomain of it match.
+     */
+    private void writeDomainIndex(Target target) {
+        List<String> collapsed = DomainIndex.collapse(domains);
+        File file = new File(directory, target.fileName("domains", "index"));
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            DomainIndex.build(collapsed, fpp).writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write " + file, e);
+        }
+
+        DomainIndex index;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            index = DomainIndex.readFrom(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read back " + file, e);
+        }
+        int amtMissing = 0;
+        for (String domain : domains) {
+            if (!index.matches(domain) || (domain.length() < 200 && !index.matches("subdomain." + domain))) amtMissing++;
+        }
+        if (amtMissing != 0) {
+            throw new IllegalStateException(file.getName() + ": " + amtMissing + " of " + domains.size() + " domains missing");
+        }
+        System.out.println("\t" + file.getName() + ": no false negatives in " + domains.size() + " domains, " + collapsed.size() + " indexed, "
+                + (domains.size() - collapsed.size()) + " covered by a listed parent, " + file.length() + " bytes");
+    }
+
+    /**
+     * Writes the delta from the production file to the new one next to it, as &lt;name&gt;.delta,
+     * and applies it to check that it reproduces the new file exactly.
+     */
+    private static void writeDelta(File previous, File next) {
+        File delta = new File(next.getParentFile(), next.getName().replace(".bin", ".delta"));
+        if (!previous.exists()) {
+            System.out.println("\t" + next.getName() + ": not in production, no delta");
+            return;
+        }
+        try {
+            long amtChanged = FilterDelta.write(previous, next, delta);
+            if (amtChanged < 0) {
+                System.out.println("\t" + next.getName() + ": geometry changed, no delta");
+                return;
+            }
+            if (delta.length() >= next.length()) {
+                Files.delete(delta.toPath());
+                System.out.println("\t" + next.getName() + ": delta would not be smaller, no delta");
+                return;
+            }
+            byte[] applied;
+            try (InputStream in = new FileInputStream(delta)) {
+                applied = FilterDelta.apply(Files.readAllBytes(previous.toPath()), in);
+            }
+            if (!Arrays.equals(applied, Files.readAllBytes(next.toPath()))) {
+                throw new IllegalStateException(delta.getName() + " does not reproduce " + next.getName());
+            }
+            System.out.println("\t" + delta.getName() + ": " + amtChanged + " changed bits, " + delta.length() + " bytes, "
+                    + String.format("%.1f", 100.0 * delta.length() / next.length()) + "% of the full file");
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write " + delta, e);
+        }
+    }
+}
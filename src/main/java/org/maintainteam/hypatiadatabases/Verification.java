@@ -0,0 +1,89 @@
+package org.maintainteam.hypatiadatabases;
+
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Checks a filter as a client loaded it: every listed key must match, and keys that were never listed must match
+ * no more often than the filter's expected false positive rate allows.
+ * Random probes are split into parts run on every core; set -Dhypatia.verifyProbes=&lt;count&gt; per filter (default 4000000)
+ * and -Dhypatia.fppTolerance=&lt;factor&gt; (default 1.5) for how far above the expected rate a measurement may land.
+ */
+public final class Verification {
+    public static final long PROBES = Long.getLong("hypatia.verifyProbes", 4000000);
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("hypatia.fppTolerance", "1.5"));
+    //probes per part, large enough that scheduling costs nothing next to the lookups
+    private static final int PART_SIZE = 1 << 16;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INVALID = ".invalid".getBytes(StandardCharsets.US_ASCII);
+    private static final long SEED = 0x48595041L;
+    //Guava's layout sets a key's bits at h1 + i * h2 modulo the bit count, which spreads them worse than independent hashes
+    //while the bit count is small: at fpp 1e-5 over 4M probes its filters of 1k entries match three times their expected rate
+    //and of 2k entries twice, from 8k entries on they stay within TOLERANCE. As clients dictate that layout, bloom and mapped
+    //filters smaller than this are reported but not held to their rate
+    public static final int MIN_CHECKED_GUAVA_ENTRIES = 1 << 14;
+
+    private Verification() {
+    }
+
+    /**
+     * @return the number of keys the filter misses, which must be zero
+     */
+    public static long falseNegatives(Predicate<byte[]> filter, FilterFormat.Keys keys) {
+        LongAdder amtMissing = new LongAdder();
+        keys.forEach(key -> {
+            if (!filter.test(key)) amtMissing.increment();
+        });
+        return amtMissing.sum();
+    }
+
+    /**
+     * Probes random keys that cannot have been listed: lowercase hex digests of hexLength characters,
+     * or for hexLength 0 domains under .invalid, which is reserved and never resolves.
+     * The probes are the same on every run, so a build's report is reproducible.
+     *
+     * @return the number of probes the filter matched
+     */
+    public static long falsePositives(Predicate<byte[]> filter, int hexLength, long probes) {
+        int parts = (int) Math.max(1, (probes + PART_SIZE - 1) / PART_SIZE);
+        LongAdder amtMatched = new LongAdder();
+        ParallelIngest.forEachPart(parts, part -> {
+            SplittableRandom random = new SplittableRandom(SEED + part);
+            byte[] key = new byte[hexLength == 0 ? 16 + INVALID.length : hexLength];
+            System.arraycopy(INVALID, 0, key, key.length - INVALID.length, hexLength == 0 ? INVALID.length : 0);
+            int hexChars = hexLength == 0 ? 16 : hexLength;
+            long from = probes * part / parts;
+            long to = probes * (part + 1) / parts;
+            long matched = 0;
+            for (long probe = from; probe < to; probe++) {
+                for (int c = 0; c < hexChars; c += 16) {
+                    long bits = random.nextLong();
+                    for (int d = c; d < Math.min(c + 16, hexChars); d++) {
+                        key[d] = HEX_DIGITS[(int) (bits >>> ((d - c) << 2)) & 0xF];
+                    }
+                }
+                if (filter.test(key)) matched++;
+            }
+            amtMatched.add(matched);
+        });
+        return amtMatched.sum();
+    }
+
+    /**
+     * @return the most matches out of probes a filter with expectedFpp may show before it is considered broken:
+     * TOLERANCE times the expected count, plus four standard deviations of sampling noise
+     */
+    public static long maxFalsePositives(double expectedFpp, long probes) {
+        double expected = expectedFpp * probes;
+        return (long) Math.ceil(expected * TOLERANCE + 4 * Math.sqrt(expected) + 1);
+    }
+
+    /**
+     * @return whether a filter of format holding entries fails when it matches more than maxFalsePositives
+     */
+    public static boolean checksFpp(FilterFormat format, long entries) {
+        return format != FilterFormat.BLOOM && format != FilterFormat.MAPPED || entries >= MIN_CHECKED_GUAVA_ENTRIES;
+    }
+}
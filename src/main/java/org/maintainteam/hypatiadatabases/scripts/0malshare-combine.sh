@@ -1,14 +1,15 @@
-sort -u malshare-md5/malshare_fileList.2013-*.txt > raw-extended/malshare-2013.md5
-sort -u malshare-md5/malshare_fileList.2014-*.txt > raw-extended/malshare-2014.md5
-sort -u malshare-md5/malshare_fileList.2015-*.txt > raw-extended/malshare-2015.md5
-sort -u malshare-md5/malshare_fileList.2016-*.txt > raw-extended/malshare-2016.md5
-sort -u malshare-md5/malshare_fileList.2017-*.txt > raw-extended/malshare-2017.md5
+#The lists are deduplicated when the databases are built (set -Dhypatia.memoryBudget for ones larger than the heap), so they are only concatenated here
+cat malshare-md5/malshare_fileList.2013-*.txt > raw-extended/malshare-2013.md5
+cat malshare-md5/malshare_fileList.2014-*.txt > raw-extended/malshare-2014.md5
+cat malshare-md5/malshare_fileList.2015-*.txt > raw-extended/malshare-2015.md5
+cat malshare-md5/malshare_fileList.2016-*.txt > raw-extended/malshare-2016.md5
+cat malshare-md5/malshare_fileList.2017-*.txt > raw-extended/malshare-2017.md5
 
-sort -u malshare-sha256/malshare_fileList.2017-*.sha256.txt > raw/malshare-2017.sha256
-sort -u malshare-sha256/malshare_fileList.2018-*.sha256.txt > raw/malshare-2018.sha256
-sort -u malshare-sha256/malshare_fileList.2019-*.sha256.txt > raw/malshare-2019.sha256
-sort -u malshare-sha256/malshare_fileList.2020-*.sha256.txt > raw/malshare-2020.sha256
-sort -u malshare-sha256/malshare_fileList.2021-*.sha256.txt > raw/malshare-2021.sha256
-sort -u malshare-sha256/malshare_fileList.2022-*.sha256.txt > raw/malshare-2022.sha256
-sort -u malshare-sha256/malshare_fileList.2023-*.sha256.txt > raw/malshare-2023.sha256
-sort -u malshare-sha256/malshare_fileList.2024-*.sha256.txt > raw/malshare-2024.sha256
+cat malshare-sha256/malshare_fileList.2017-*.sha256.txt > raw/malshare-2017.sha256
+cat malshare-sha256/malshare_fileList.2018-*.sha256.txt > raw/malshare-2018.sha256
+cat malshare-sha256/malshare_fileList.2019-*.sha256.txt > raw/malshare-2019.sha256
+cat malshare-sha256/malshare_fileList.2020-*.sha256.txt > raw/malshare-2020.sha256
+cat malshare-sha256/malshare_fileList.2021-*.sha256.txt > raw/malshare-2021.sha256
+cat malshare-sha256/malshare_fileList.2022-*.sha256.txt > raw/malshare-2022.sha256
+cat malshare-sha256/malshare_fileList.2023-*.sha256.txt > raw/malshare-2023.sha256
+cat malshare-sha256/malshare_fileList.2024-*.sha256.txt > raw/malshare-2024.sha256
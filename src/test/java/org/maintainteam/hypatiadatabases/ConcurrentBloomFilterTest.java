@@ -0,0 +1,107 @@
+package org.maintainteam.hypatiadatabases;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pins the files ConcurrentBloomFilter writes to the bytes of Guava's BloomFilter, which the Android client loads them with.
+ */
+public class ConcurrentBloomFilterTest extends TestCase {
+    private static final double FPP = 0.00001;
+
+    public void testWritesTheBytesOfGuava() throws IOException {
+        for (int amtKeys : new int[]{0, 1, 1000, 20000}) {
+            List<String> keys = keys(amtKeys);
+            assertTrue("Different bytes for " + amtKeys + " keys", Arrays.equals(guava(keys, amtKeys, FPP), concurrent(keys, amtKeys, FPP)));
+        }
+    }
+
+    public void testWritesTheBytesOfGuavaPastCapacity() throws IOException {
+        List<String> keys = keys(5000);
+        assertTrue(Arrays.equals(guava(keys, 1000, 0.01), concurrent(keys, 1000, 0.01)));
+    }
+
+    public void testGuavaReadsWhatItWrites() throws IOException {
+        List<String> keys = keys(5000);
+        BloomFilter<CharSequence> read = BloomFilter.readFrom(new ByteArrayInputStream(concurrent(keys, keys.size(), FPP)),
+                Funnels.stringFunnel(StandardCharsets.US_ASCII));
+        for (String key : keys) {
+            assertTrue(key, read.mightContain(key));
+        }
+    }
+
+    public void testReadsWhatGuavaWrites() throws IOException {
+        List<String> keys = keys(5000);
+        ConcurrentBloomFilter read = ConcurrentBloomFilter.readFrom(new ByteArrayInputStream(guava(keys, keys.size(), FPP)));
+        for (String key : keys) {
+            assertTrue(key, read.mightContain(key.getBytes(StandardCharsets.US_ASCII)));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        read.writeTo(out);
+        assertTrue(Arrays.equals(guava(keys, keys.size(), FPP), out.toByteArray()));
+    }
+
+    /**
+     * @return md5, sha1 and sha256 hex digests and domains, as the databases hold them
+     */
+    static List<String> keys(int amount) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < amount; i++) {
+            switch (i % 4) {
+                case 0:
+                    keys.add(hex(i, 32));
+                    break;
+                case 1:
+                    keys.add(hex(i, 40));
+                    break;
+                case 2:
+                    keys.add(hex(i, 64));
+                    break;
+                default:
+                    keys.add("host" + i + ".example.com");
+                    break;
+            }
+        }
+        return keys;
+    }
+
+    private static String hex(int seed, int length) {
+        StringBuilder hex = new StringBuilder();
+        long state = seed * 0x9E3779B97F4A7C15L + 1;
+        while (hex.length() < length) {
+            state ^= state << 13;
+            state ^= state >>> 7;
+            state ^= state << 17;
+            hex.append(String.format("%016x", state));
+        }
+        return hex.substring(0, length);
+    }
+
+    private static byte[] guava(List<String> keys, long expectedInsertions, double fpp) throws IOException {
+        BloomFilter<CharSequence> filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.US_ASCII), expectedInsertions, fpp);
+        for (String key : keys) {
+            filter.put(key);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        filter.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] concurrent(List<String> keys, long expectedInsertions, double fpp) throws IOException {
+        ConcurrentBloomFilter filter = ConcurrentBloomFilter.create(expectedInsertions, fpp);
+        keys.parallelStream().forEach(key -> filter.put(key.getBytes(StandardCharsets.US_ASCII)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        filter.writeTo(out);
+        assertEquals(filter.serializedSize(), out.size());
+        return out.toByteArray();
+    }
+}
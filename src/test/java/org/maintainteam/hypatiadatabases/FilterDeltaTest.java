@@ -0,0 +1,98 @@
+package org.maintainteam.hypatiadatabases;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that a delta between two generations of a bloom filter turns the production file into the new one, byte for byte.
+ */
+public class FilterDeltaTest extends TestCase {
+    private File directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("filter-delta").toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    public void testAppliesToTheNextGeneration() throws IOException {
+        List<String> keys = ConcurrentBloomFilterTest.keys(6000);
+        File previous = write("previous.bin", keys.subList(0, 5000), null);
+        File next = write("next.bin", keys.subList(500, 6000), previous);
+        assertEquals(previous.length(), next.length());
+
+        File delta = new File(directory, "next.delta");
+        long amtChanged = FilterDelta.write(previous, next, delta);
+        assertTrue(amtChanged > 0);
+        assertTrue(delta.length() < next.length());
+
+        byte[] applied = FilterDelta.apply(Files.readAllBytes(previous.toPath()), new ByteArrayInputStream(Files.readAllBytes(delta.toPath())));
+        assertTrue(Arrays.equals(Files.readAllBytes(next.toPath()), applied));
+
+        File output = new File(directory, "applied.bin");
+        FilterDelta.apply(previous, delta, output);
+        assertTrue(Arrays.equals(Files.readAllBytes(next.toPath()), Files.readAllBytes(output.toPath())));
+    }
+
+    public void testAppliesAnEmptyDelta() throws IOException {
+        List<String> keys = ConcurrentBloomFilterTest.keys(1000);
+        File previous = write("previous.bin", keys, null);
+        File next = write("next.bin", keys, previous);
+        File delta = new File(directory, "next.delta");
+        assertEquals(0, FilterDelta.write(previous, next, delta));
+        assertTrue(Arrays.equals(Files.readAllBytes(next.toPath()),
+                FilterDelta.apply(Files.readAllBytes(previous.toPath()), new ByteArrayInputStream(Files.readAllBytes(delta.toPath())))));
+    }
+
+    public void testWritesNoDeltaWhenTheGeometryChanged() throws IOException {
+        File previous = write("previous.bin", ConcurrentBloomFilterTest.keys(100), null);
+        File next = write("next.bin", ConcurrentBloomFilterTest.keys(10000), null);
+        File delta = new File(directory, "next.delta");
+        assertEquals(-1, FilterDelta.write(previous, next, delta));
+        assertFalse(delta.exists());
+    }
+
+    public void testRejectsAnotherBase() throws IOException {
+        List<String> keys = ConcurrentBloomFilterTest.keys(2000);
+        File previous = write("previous.bin", keys.subList(0, 1000), null);
+        File next = write("next.bin", keys.subList(1000, 2000), previous);
+        File other = write("other.bin", keys, previous);
+        File delta = new File(directory, "next.delta");
+        FilterDelta.write(previous, next, delta);
+        try {
+            FilterDelta.apply(Files.readAllBytes(other.toPath()), new ByteArrayInputStream(Files.readAllBytes(delta.toPath())));
+            fail("Applied a delta to a base it was not made for");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * @param previous the generation to keep the geometry of, as the pipeline does, or null for a first generation
+     */
+    private File write(String name, List<String> keys, File previous) throws IOException {
+        ConcurrentBloomFilter filter = ConcurrentBloomFilter.create(keys.size(), 0.00001, previous == null ? new File(directory, "missing") : previous);
+        for (String key : keys) {
+            filter.put(key.getBytes(StandardCharsets.US_ASCII));
+        }
+        File file = new File(directory, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            filter.writeTo(out);
+        }
+        return file;
+    }
+}
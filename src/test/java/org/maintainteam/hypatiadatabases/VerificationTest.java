@@ -0,0 +1,54 @@
+package org.maintainteam.hypatiadatabases;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Checks that the false positive gate of TargetVerifier passes the filters the builders write at the sizes the databases have.
+ */
+public class VerificationTest extends TestCase {
+    private static final double FPP = 0.00001;
+    private static final long PROBES = 4000000;
+
+    public void testPassesASmallDomainList() throws IOException {
+        //the size of the domain list that matched 101 probes against a limit of 87 in its bloom filter
+        List<String> keys = ConcurrentBloomFilterTest.keys(2051);
+        for (FilterFormat format : FilterFormat.values()) {
+            assertPasses(format, keys);
+        }
+    }
+
+    public void testHoldsGuavaLayoutsToTheirRateOnceLarge() throws IOException {
+        List<String> keys = ConcurrentBloomFilterTest.keys(Verification.MIN_CHECKED_GUAVA_ENTRIES);
+        for (FilterFormat format : new FilterFormat[]{FilterFormat.BLOOM, FilterFormat.MAPPED}) {
+            assertTrue(Verification.checksFpp(format, keys.size()));
+            assertPasses(format, keys);
+        }
+    }
+
+    public void testHoldsOtherFormatsToTheirRateAtAnySize() {
+        assertTrue(Verification.checksFpp(FilterFormat.BLOCKED, 1));
+        assertTrue(Verification.checksFpp(FilterFormat.FUSE, 1));
+        assertFalse(Verification.checksFpp(FilterFormat.BLOOM, 2051));
+        assertFalse(Verification.checksFpp(FilterFormat.MAPPED, 2051));
+    }
+
+    private static void assertPasses(FilterFormat format, List<String> keys) throws IOException {
+        FilterFormat.Builder builder = format.builder(keys.size(), keys.size(), FPP, null);
+        for (String key : keys) {
+            builder.put(key.getBytes(StandardCharsets.US_ASCII));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        builder.writeTo(out);
+        FilterFormat.Reader reader = format.read(new ByteArrayInputStream(out.toByteArray()));
+        long amtMatched = Verification.falsePositives(reader, 0, PROBES);
+        long limit = Verification.maxFalsePositives(reader.expectedFpp(), PROBES);
+        assertFalse(format + ": " + amtMatched + " of " + PROBES + " matched, limit " + limit,
+                amtMatched > limit && Verification.checksFpp(format, keys.size()));
+    }
+}